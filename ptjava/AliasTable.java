@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2023 akava.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package ptjava;
+
+// Walker's alias method: picks index i with probability weights[i] / sum in
+// constant time. Every column has a threshold and an alias, u picks the column
+// and its fraction decides between the column and its alias. Built with
+// Vose's small and large worklists.
+class AliasTable {
+
+    double[] Probability;
+    double[] Threshold;
+    int[] Alias;
+
+    AliasTable(double[] weights) {
+        int n = weights.length;
+        Probability = new double[n];
+        Threshold = new double[n];
+        Alias = new int[n];
+
+        double sum = 0;
+        for (double w : weights) {
+            sum += w;
+        }
+
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int ns = 0, nl = 0;
+        for (int i = 0; i < n; i++) {
+            // all zero weights fall back to uniform
+            Probability[i] = sum > 0 ? weights[i] / sum : 1.0 / n;
+            scaled[i] = Probability[i] * n;
+            if (scaled[i] < 1) {
+                small[ns++] = i;
+            } else {
+                large[nl++] = i;
+            }
+        }
+
+        while (ns > 0 && nl > 0) {
+            int s = small[--ns];
+            int l = large[--nl];
+            Threshold[s] = scaled[s];
+            Alias[s] = l;
+            scaled[l] = scaled[l] + scaled[s] - 1;
+            if (scaled[l] < 1) {
+                small[ns++] = l;
+            } else {
+                large[nl++] = l;
+            }
+        }
+        // what is left is 1 up to rounding
+        while (nl > 0) {
+            int l = large[--nl];
+            Threshold[l] = 1;
+            Alias[l] = l;
+        }
+        while (ns > 0) {
+            int s = small[--ns];
+            Threshold[s] = 1;
+            Alias[s] = s;
+        }
+    }
+
+    static AliasTable NewAliasTable(double[] weights) {
+        return new AliasTable(weights);
+    }
+
+    // index for u in [0, 1)
+    int Sample(double u) {
+        int n = Threshold.length;
+        double x = u * n;
+        int i = Math.min((int) x, n - 1);
+        return x - i < Threshold[i] ? i : Alias[i];
+    }
+
+    double Pdf(int i) {
+        return Probability[i];
+    }
+}
@@ -0,0 +1,479 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2023 akava.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package ptjava;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+
+class BVH implements Accelerator {
+
+    static final int BinCount = 12;
+    static final int MaxLeafSize = 4;
+    static final int MaxForcedLeafSize = 16;
+    static final double TraversalCost = 1;
+    static final double IntersectCost = 1;
+
+    // subtrees with at least this many shapes are built on the fork-join pool
+    static final int ParallelThreshold = 2048;
+
+    public Box Box;
+    IShape[] Shapes;
+    int ShapeCount;
+
+    // nodes in depth-first order, six doubles of bounds and two ints each; the
+    // left child of an inner node directly follows it, the ints hold the right
+    // child index and -(axis + 1), or the first shape and shape count for a leaf
+    double[] NodeBounds;
+    int[] NodeData;
+    long BuildTime;
+    int NodeCount;
+    int LeafCount;
+    int MaxDepth;
+    // traversal stack of each thread, sized to the tree's depth when built
+    private final ThreadLocal<int[]> stacks;
+
+    // per-shape bounds and centroids, only kept while building
+    private double[] bmin;
+    private double[] bmax;
+    private double[] centroid;
+    private int[] index;
+
+    BVH(IShape[] shapes) {
+        long start = System.nanoTime();
+        List<IShape> list = new ArrayList<>();
+        for (IShape shape : shapes) {
+            if (shape != null) {
+                list.add(shape);
+            }
+        }
+        int n = list.size();
+        bmin = new double[n * 3];
+        bmax = new double[n * 3];
+        centroid = new double[n * 3];
+        index = new int[n];
+
+        Tree.range(n, n >= ParallelThreshold).forEach(i -> {
+            Box box = list.get(i).BoundingBox();
+            bmin[i * 3] = box.Min.getX();
+            bmin[i * 3 + 1] = box.Min.getY();
+            bmin[i * 3 + 2] = box.Min.getZ();
+            bmax[i * 3] = box.Max.getX();
+            bmax[i * 3 + 1] = box.Max.getY();
+            bmax[i * 3 + 2] = box.Max.getZ();
+            for (int a = 0; a < 3; a++) {
+                centroid[i * 3 + a] = (bmin[i * 3 + a] + bmax[i * 3 + a]) * 0.5;
+            }
+            index[i] = i;
+        });
+
+        NodeBounds = new double[0];
+        NodeData = new int[0];
+        if (n > 0) {
+            Node root = build(0, n);
+            count(root, 0);
+            double[] b = root.Bounds;
+            Box = new Box(new Vector(b[0], b[1], b[2]), new Vector(b[3], b[4], b[5]));
+            NodeBounds = new double[NodeCount * 6];
+            NodeData = new int[NodeCount * 2];
+            flatten(root, 0);
+        } else {
+            Box = new Box(new Vector(), new Vector());
+        }
+
+        Shapes = new IShape[n];
+        ShapeCount = n;
+        for (int i = 0; i < n; i++) {
+            Shapes[i] = list.get(index[i]);
+        }
+
+        bmin = null;
+        bmax = null;
+        centroid = null;
+        index = null;
+        int depth = MaxDepth + 1;
+        stacks = ThreadLocal.withInitial(() -> new int[depth]);
+        BuildTime = System.nanoTime() - start;
+    }
+
+    static BVH NewBVH(IShape[] shapes) {
+        System.out.println("Building BVH: " + shapes.length);
+        return new BVH(shapes);
+    }
+
+    private Node build(int start, int end) {
+        double[] bounds = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                           Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        double[] cbounds = bounds.clone();
+
+        for (int i = start; i < end; i++) {
+            int s = index[i];
+            for (int a = 0; a < 3; a++) {
+                bounds[a] = Math.min(bounds[a], bmin[s * 3 + a]);
+                bounds[a + 3] = Math.max(bounds[a + 3], bmax[s * 3 + a]);
+                cbounds[a] = Math.min(cbounds[a], centroid[s * 3 + a]);
+                cbounds[a + 3] = Math.max(cbounds[a + 3], centroid[s * 3 + a]);
+            }
+        }
+
+        Node node = new Node(bounds);
+        int count = end - start;
+
+        if (count <= MaxLeafSize) {
+            return leaf(node, start, count);
+        }
+
+        // binned SAH: pick the cheapest bin boundary over all three axes
+        double bestCost = Double.POSITIVE_INFINITY;
+        int bestAxis = -1;
+        int bestBin = 0;
+        double nodeArea = area(bounds, 0);
+        int[] binCount = new int[BinCount];
+        double[] binBounds = new double[BinCount * 6];
+        double[] rightArea = new double[BinCount];
+
+        for (int a = 0; a < 3; a++) {
+            double lo = cbounds[a];
+            double extent = cbounds[a + 3] - lo;
+            if (!(extent > 0)) {
+                continue;
+            }
+
+            java.util.Arrays.fill(binCount, 0);
+            for (int b = 0; b < BinCount; b++) {
+                resetBounds(binBounds, b * 6);
+            }
+
+            for (int i = start; i < end; i++) {
+                int s = index[i];
+                int b = binIndex(centroid[s * 3 + a], lo, extent);
+                binCount[b]++;
+                growBounds(binBounds, b * 6, s);
+            }
+
+            double[] acc = new double[6];
+            resetBounds(acc, 0);
+            for (int b = BinCount - 1; b > 0; b--) {
+                mergeBounds(acc, binBounds, b * 6);
+                rightArea[b] = area(acc, 0);
+            }
+
+            resetBounds(acc, 0);
+            int leftCount = 0;
+            for (int b = 1; b < BinCount; b++) {
+                mergeBounds(acc, binBounds, (b - 1) * 6);
+                leftCount += binCount[b - 1];
+                int rightCount = count - leftCount;
+                if (leftCount == 0 || rightCount == 0) {
+                    continue;
+                }
+                double cost = TraversalCost
+                        + IntersectCost * (area(acc, 0) * leftCount + rightArea[b] * rightCount) / nodeArea;
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestAxis = a;
+                    bestBin = b;
+                }
+            }
+        }
+
+        int mid;
+        if (bestAxis < 0) {
+            // all centroids coincide, fall back to an object median split
+            if (count <= MaxForcedLeafSize) {
+                return leaf(node, start, count);
+            }
+            mid = start + count / 2;
+            node.Axis = 0;
+        } else {
+            if (bestCost >= IntersectCost * count && count <= MaxForcedLeafSize) {
+                return leaf(node, start, count);
+            }
+
+            double lo = cbounds[bestAxis];
+            double extent = cbounds[bestAxis + 3] - lo;
+            int i = start;
+            int j = end - 1;
+            while (i <= j) {
+                if (binIndex(centroid[index[i] * 3 + bestAxis], lo, extent) < bestBin) {
+                    i++;
+                } else {
+                    int tmp = index[i];
+                    index[i] = index[j];
+                    index[j] = tmp;
+                    j--;
+                }
+            }
+            mid = i;
+            if (mid == start || mid == end) {
+                mid = start + count / 2;
+            }
+            node.Axis = bestAxis;
+        }
+
+        // the two halves of index are disjoint, so large subtrees can be built concurrently
+        int split = mid;
+        if (count >= ParallelThreshold) {
+            ForkJoinTask.invokeAll(ForkJoinTask.adapt(() -> node.Left = build(start, split)),
+                                   ForkJoinTask.adapt(() -> node.Right = build(split, end)));
+        } else {
+            node.Left = build(start, mid);
+            node.Right = build(mid, end);
+        }
+        return node;
+    }
+
+    private void count(Node node, int depth) {
+        NodeCount++;
+        MaxDepth = Math.max(MaxDepth, depth);
+        if (node.Left == null) {
+            LeafCount++;
+            return;
+        }
+        count(node.Left, depth + 1);
+        count(node.Right, depth + 1);
+    }
+
+    // writes the subtree in depth-first order and returns the next free slot
+    private int flatten(Node node, int i) {
+        System.arraycopy(node.Bounds, 0, NodeBounds, i * 6, 6);
+        if (node.Left == null) {
+            NodeData[i * 2] = node.Start;
+            NodeData[i * 2 + 1] = node.Count;
+            return i + 1;
+        }
+        int right = flatten(node.Left, i + 1);
+        NodeData[i * 2] = right;
+        NodeData[i * 2 + 1] = -(node.Axis + 1);
+        return flatten(node.Right, right);
+    }
+
+    private Node leaf(Node node, int start, int count) {
+        node.Start = start;
+        node.Count = count;
+        return node;
+    }
+
+    private static int binIndex(double c, double lo, double extent) {
+        int b = (int) (BinCount * ((c - lo) / extent));
+        return Math.min(Math.max(b, 0), BinCount - 1);
+    }
+
+    private static void resetBounds(double[] b, int o) {
+        for (int a = 0; a < 3; a++) {
+            b[o + a] = Double.POSITIVE_INFINITY;
+            b[o + a + 3] = Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    private void growBounds(double[] b, int o, int s) {
+        for (int a = 0; a < 3; a++) {
+            b[o + a] = Math.min(b[o + a], bmin[s * 3 + a]);
+            b[o + a + 3] = Math.max(b[o + a + 3], bmax[s * 3 + a]);
+        }
+    }
+
+    private static void mergeBounds(double[] dst, double[] src, int o) {
+        for (int a = 0; a < 3; a++) {
+            dst[a] = Math.min(dst[a], src[o + a]);
+            dst[a + 3] = Math.max(dst[a + 3], src[o + a + 3]);
+        }
+    }
+
+    static double area(double[] b, int o) {
+        double dx = b[o + 3] - b[o];
+        double dy = b[o + 4] - b[o + 1];
+        double dz = b[o + 5] - b[o + 2];
+        if (!(dx >= 0 && dy >= 0 && dz >= 0)) {
+            return 0;
+        }
+        return 2 * (dx * dy + dy * dz + dz * dx);
+    }
+
+    @Override
+    public Hit Intersect(Ray r) {
+        if (NodeData.length == 0) {
+            return Hit.NoHit;
+        }
+
+        double ox = r.OX;
+        double oy = r.OY;
+        double oz = r.OZ;
+        double ix = r.InvX;
+        double iy = r.InvY;
+        double iz = r.InvZ;
+        // offsets of the near and far planes, picked by the direction signs
+        int nx = r.SignX * 3;
+        int ny = r.SignY * 3 + 1;
+        int nz = r.SignZ * 3 + 2;
+        int fx = 3 - r.SignX * 3;
+        int fy = 4 - r.SignY * 3;
+        int fz = 5 - r.SignZ * 3;
+
+        int[] stack = stacks.get();
+        int sp = 0;
+        int node = 0;
+        Hit best = Hit.NoHit;
+
+        while (true) {
+            int o = node * 6;
+            double tmin = Math.max(Math.max((NodeBounds[o + nx] - ox) * ix, (NodeBounds[o + ny] - oy) * iy),
+                                   (NodeBounds[o + nz] - oz) * iz);
+            double tmax = Math.min(Math.min((NodeBounds[o + fx] - ox) * ix, (NodeBounds[o + fy] - oy) * iy),
+                                   (NodeBounds[o + fz] - oz) * iz);
+
+            if (!(tmax < tmin || tmax <= 0 || tmin >= best.T)) {
+                int data = NodeData[node * 2 + 1];
+                if (data > 0) {
+                    best = intersectLeaf(r, NodeData[node * 2], data, best);
+                } else {
+                    int axis = -data - 1;
+                    int sign = axis == 0 ? r.SignX : axis == 1 ? r.SignY : r.SignZ;
+                    int right = NodeData[node * 2];
+                    if (sign != 0) {
+                        stack[sp++] = node + 1;
+                        node = right;
+                    } else {
+                        stack[sp++] = right;
+                        node = node + 1;
+                    }
+                    continue;
+                }
+            }
+
+            if (sp == 0) {
+                return best;
+            }
+            node = stack[--sp];
+        }
+    }
+
+    // any-hit traversal: nodes beyond maxT are skipped and the first blocker ends the walk
+    @Override
+    public boolean Occluded(Ray r, double maxT) {
+        if (NodeData.length == 0) {
+            return false;
+        }
+
+        double ox = r.OX;
+        double oy = r.OY;
+        double oz = r.OZ;
+        double ix = r.InvX;
+        double iy = r.InvY;
+        double iz = r.InvZ;
+        int nx = r.SignX * 3;
+        int ny = r.SignY * 3 + 1;
+        int nz = r.SignZ * 3 + 2;
+        int fx = 3 - r.SignX * 3;
+        int fy = 4 - r.SignY * 3;
+        int fz = 5 - r.SignZ * 3;
+
+        int[] stack = stacks.get();
+        int sp = 0;
+        int node = 0;
+
+        while (true) {
+            int o = node * 6;
+            double tmin = Math.max(Math.max((NodeBounds[o + nx] - ox) * ix, (NodeBounds[o + ny] - oy) * iy),
+                                   (NodeBounds[o + nz] - oz) * iz);
+            double tmax = Math.min(Math.min((NodeBounds[o + fx] - ox) * ix, (NodeBounds[o + fy] - oy) * iy),
+                                   (NodeBounds[o + fz] - oz) * iz);
+
+            if (!(tmax < tmin || tmax <= 0 || tmin >= maxT)) {
+                int data = NodeData[node * 2 + 1];
+                if (data > 0) {
+                    if (occludedLeaf(r, NodeData[node * 2], data, maxT)) {
+                        return true;
+                    }
+                } else {
+                    stack[sp++] = NodeData[node * 2];
+                    node = node + 1;
+                    continue;
+                }
+            }
+
+            if (sp == 0) {
+                return false;
+            }
+            node = stack[--sp];
+        }
+    }
+
+    // closest of best and the hits on the shapes of one leaf
+    Hit intersectLeaf(Ray r, int start, int count, Hit best) {
+        for (int i = start; i < start + count; i++) {
+            Hit h = Shapes[i].Intersect(r);
+            if (h.T < best.T) {
+                best = h;
+            }
+        }
+        return best;
+    }
+
+    boolean occludedLeaf(Ray r, int start, int count, double maxT) {
+        for (int i = start; i < start + count; i++) {
+            if (Shapes[i].Occluded(r, maxT)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // surface-area weighted cost of the flattened nodes, normalised by the root area
+    double Cost() {
+        if (NodeData.length == 0) {
+            return 0;
+        }
+        double cost = 0;
+        for (int i = 0; i < NodeData.length / 2; i++) {
+            double a = area(NodeBounds, i * 6);
+            int data = NodeData[i * 2 + 1];
+            cost += data > 0 ? a * IntersectCost * data : a * TraversalCost;
+        }
+        double rootArea = area(NodeBounds, 0);
+        return rootArea > 0 ? cost / rootArea : 0;
+    }
+
+    @Override
+    public String Stats() {
+        return String.format("BVH: %d shapes, %d nodes, %d leaves, depth %d, SAH cost %.2f, built in %d ms",
+                ShapeCount, NodeCount, LeafCount, MaxDepth, Cost(), BuildTime / 1000000);
+    }
+
+    // build-time node, flattened into NodeBounds/NodeData once the tree is complete
+    static class Node {
+
+        double[] Bounds;
+        int Axis;
+        int Start;
+        int Count;
+        Node Left;
+        Node Right;
+
+        Node(double[] bounds) {
+            this.Bounds = bounds;
+        }
+    }
+}
@@ -32,12 +32,18 @@ class Box {
     boolean left;
     boolean right;
 
+    // min and max corners unpacked, indexed by ray sign: [0] is Min, [1] is Max
+    double[] xs, ys, zs;
+
     Box() {
     }
 
     Box(Vector min, Vector max) {
         Min = min;
         Max = max;
+        xs = new double[]{min.getX(), max.getX()};
+        ys = new double[]{min.getY(), max.getY()};
+        zs = new double[]{min.getZ(), max.getZ()};
     }
 
     static Box BoxForShapes(IShape[] shapes) {
@@ -103,32 +109,23 @@ class Box {
         }
 
         public double[] Intersect(Ray r) {
-        double x1 = (Min.getX() - r.Origin.getX()) / r.Direction.getX();
-        double y1 = (Min.getY() - r.Origin.getY()) / r.Direction.getY();
-        double z1 = (Min.getZ() - r.Origin.getZ()) / r.Direction.getZ();
-        double x2 = (Max.getX() - r.Origin.getX()) / r.Direction.getX();
-        double y2 = (Max.getY() - r.Origin.getY()) / r.Direction.getY();
-        double z2 = (Max.getZ() - r.Origin.getZ()) / r.Direction.getZ();
-        
-        if(x1 > x2) {
-            double temp = x1;
-            x1 = x2;
-            x2 = temp;
-        }
-        if(y1 > y2) {
-            double temp = y1;
-            y1 = y2;
-            y2 = temp;
+        return new double[]{Near(r), Far(r)};
         }
-        if(z1 > z2) {
-            double temp = z1;
-            z1 = z2;
-            z2 = temp;
+
+        // entry distance of the ray into the box, allocation free
+        public double Near(Ray r) {
+        double x = (xs[r.SignX] - r.OX) * r.InvX;
+        double y = (ys[r.SignY] - r.OY) * r.InvY;
+        double z = (zs[r.SignZ] - r.OZ) * r.InvZ;
+        return Math.max(Math.max(x, y), z);
         }
-        
-        double t1 = Math.max(Math.max(x1, y1), z1);
-        double t2 = Math.min(Math.min(x2, y2), z2);
-        return new double[]{t1, t2};
+
+        // exit distance of the ray from the box, allocation free
+        public double Far(Ray r) {
+        double x = (xs[1 - r.SignX] - r.OX) * r.InvX;
+        double y = (ys[1 - r.SignY] - r.OY) * r.InvY;
+        double z = (zs[1 - r.SignZ] - r.OZ) * r.InvZ;
+        return Math.min(Math.min(x, y), z);
         }
 
         public boolean[] Partition(Axis axis, double point) {
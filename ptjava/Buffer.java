@@ -1,14 +1,22 @@
 package ptjava;
 
 import java.awt.image.BufferedImage;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.awt.Point;
 
 public class Buffer {
     
     public final int W, H;
-    public final Pixel[] Pixels;
-    private final byte[] imageBuffer;
+    // running mean and sum of squared differences (Welford), three doubles
+    // per pixel, and the number of samples per pixel
+    final double[] M;
+    final double[] V;
+    final int[] Samples;
+    // first-hit features for the denoiser: mean albedo and normal, three
+    // doubles per pixel, mean depth, and how many samples reported them
+    final double[] Albedo;
+    final double[] Normal;
+    final double[] Depth;
+    final int[] FeatureSamples;
 
     public enum Channel {
         ColorChannel, 
@@ -17,70 +25,120 @@ public class Buffer {
         SamplesChannel
     }
 
-    public Buffer(int width, int height, Pixel[] pixels) {
+    public Buffer(int width, int height, double[] m, double[] v, int[] samples,
+                  double[] albedo, double[] normal, double[] depth, int[] featureSamples) {
         this.W = width;
         this.H = height;
-        this.imageBuffer = new byte[256 * 4 * height];
-        this.Pixels = pixels;
+        this.M = m;
+        this.V = v;
+        this.Samples = samples;
+        this.Albedo = albedo;
+        this.Normal = normal;
+        this.Depth = depth;
+        this.FeatureSamples = featureSamples;
     }
 
-    public Buffer(int width, int height) {
-        this.W = width;
-        this.H = height;
-        this.imageBuffer = new byte[256 * 4 * height];
-        this.Pixels = new Pixel[width * height];
+    public Buffer(int width, int height, double[] m, double[] v, int[] samples) {
+        this(width, height, m, v, samples, new double[width * height * 3], new double[width * height * 3],
+                new double[width * height], new int[width * height]);
+    }
 
-        for (int i = 0; i < Pixels.length; i++) {
-            Pixels[i] = new Pixel();
-        }
+    public Buffer(int width, int height) {
+        this(width, height, new double[width * height * 3], new double[width * height * 3], new int[width * height]);
     }
 
     public Buffer Copy() {
-        Pixel[] pixCopy = java.util.Arrays.stream(Pixels)
-            .parallel() // Parallel processing for large buffers
-            .map(Pixel::new) // Calls Pixel(Pixel other) constructor
-            .toArray(Pixel[]::new);
-    
-        return new Buffer(this.W, this.H, pixCopy);
+        return new Buffer(this.W, this.H, M.clone(), V.clone(), Samples.clone(),
+                Albedo.clone(), Normal.clone(), Depth.clone(), FeatureSamples.clone());
+    }
+
+    // running mean of the first-hit features, same single writer rule as AddSample
+    public void AddFeatures(int x, int y, double ar, double ag, double ab, double nx, double ny, double nz, double depth) {
+        int i = y * W + x;
+        double f = 1.0 / ++FeatureSamples[i];
+        Depth[i] += (depth - Depth[i]) * f;
+        i *= 3;
+        Albedo[i] += (ar - Albedo[i]) * f;
+        Albedo[i + 1] += (ag - Albedo[i + 1]) * f;
+        Albedo[i + 2] += (ab - Albedo[i + 2]) * f;
+        Normal[i] += (nx - Normal[i]) * f;
+        Normal[i + 1] += (ny - Normal[i + 1]) * f;
+        Normal[i + 2] += (nz - Normal[i + 2]) * f;
     }
-    
 
-    public synchronized void AddSample(int x, int y, Colour sample) {
-        Pixels[y * W + x].AddSample(sample);
+    // not synchronized: the renderers give every pixel a single writer per pass
+    public void AddSample(int x, int y, Colour sample) {
+        AddSample(x, y, sample.r, sample.g, sample.b);
     }
 
     public void AddSample(Point p, Colour sample) {
         AddSample(p.x, p.y, sample);
     }
 
+    public void AddSample(int x, int y, double r, double g, double b) {
+        int i = y * W + x;
+        int n = ++Samples[i];
+        i *= 3;
+        if (n == 1) {
+            M[i] = r;
+            M[i + 1] = g;
+            M[i + 2] = b;
+            return;
+        }
+        add(i, r, n);
+        add(i + 1, g, n);
+        add(i + 2, b, n);
+    }
+
+    private void add(int i, double x, int n) {
+        double oldM = M[i];
+        M[i] += (x - oldM) / n;
+        V[i] += (x - oldM) * (x - M[i]);
+    }
+
     public int Samples(int x, int y) {
-        return Pixels[y * W + x].Samples.get();
+        return Samples[y * W + x];
     }
 
     public Colour Color(int x, int y) {
-        return Pixels[y * W + x].Color();
+        int i = (y * W + x) * 3;
+        return new Colour(M[i], M[i + 1], M[i + 2]);
     }
 
     public Colour Variance(int x, int y) {
-        return Pixels[y * W + x].Variance();
+        int n = Samples[y * W + x];
+        if (n < 2) {
+            return new Colour(0, 0, 0);
+        }
+        int i = (y * W + x) * 3;
+        return new Colour(V[i] / (n - 1), V[i + 1] / (n - 1), V[i + 2] / (n - 1));
     }
 
     public Colour StandardDeviation(int x, int y) {
-        return Pixels[y * W + x].StandardDeviation();
+        return Variance(x, y).Pow(0.5);
+    }
+
+    // standard deviation of the pixel's mean, shrinks as samples accumulate
+    public Colour StandardError(int x, int y) {
+        int n = Samples[y * W + x];
+        if (n < 2) {
+            return new Colour(0, 0, 0);
+        }
+        return StandardDeviation(x, y).DivScalar(Math.sqrt(n));
     }
 
     public BufferedImage Image(Channel channel) {
         BufferedImage renderedImage = new BufferedImage(this.W, this.H, BufferedImage.TYPE_INT_RGB);
         double maxSamples = (channel == Channel.SamplesChannel) ? findMaxSamples() : 0;
 
-        for (int i = 0; i < Pixels.length; i++) {
+        for (int i = 0; i < Samples.length; i++) {
             int x = i % W;
             int y = i / W;
             Colour pixelColor = switch (channel) {
-                case ColorChannel -> Pixels[i].Color().Pow(1 / 2.2);
-                case VarianceChannel -> Pixels[i].Variance();
-                case StandardDeviationChannel -> Pixels[i].StandardDeviation();
-                case SamplesChannel -> new Colour(Pixels[i].Samples.get() / maxSamples, Pixels[i].Samples.get() / maxSamples, Pixels[i].Samples.get() / maxSamples);
+                case ColorChannel -> Color(x, y).Pow(1 / 2.2);
+                case VarianceChannel -> Variance(x, y);
+                case StandardDeviationChannel -> StandardDeviation(x, y);
+                case SamplesChannel -> new Colour(Samples[i] / maxSamples, Samples[i] / maxSamples, Samples[i] / maxSamples);
             };
             renderedImage.setRGB(x, y, Colour.getIntFromColor(pixelColor.r, pixelColor.g, pixelColor.b));
         }
@@ -88,48 +146,16 @@ public class Buffer {
         return renderedImage;
     }
 
+    // sRGB-ish preview colour of one pixel, as used by the progressive display
+    int RGB(int x, int y) {
+        int i = (y * W + x) * 3;
+        double e = 1 / 2.2;
+        return Colour.getIntFromColor(Math.pow(M[i], e), Math.pow(M[i + 1], e), Math.pow(M[i + 2], e));
+    }
+
     private double findMaxSamples() {
-        return java.util.Arrays.stream(Pixels)
-            .mapToDouble(p -> p.Samples.get())
+        return java.util.Arrays.stream(Samples)
             .max()
             .orElse(1);
     }
-
-    public static class Pixel {
-        public final AtomicInteger Samples = new AtomicInteger();
-        private Colour M = new Colour(0, 0, 0);
-        private Colour V = new Colour(0, 0, 0);
-
-        public Pixel() {}
-
-        public Pixel(Pixel other) {
-            this.Samples.set(other.Samples.get());
-            this.M = other.M;
-            this.V = other.V;
-        }
-
-        public void AddSample(Colour sample) {
-            int sampleCount = Samples.incrementAndGet();
-            if (sampleCount == 1) {
-                M = sample;
-                return;
-            }
-
-            Colour oldM = M;
-            M = M.Add(sample.Sub(M).DivScalar(sampleCount));
-            V = V.Add(sample.Sub(oldM).Mul(sample.Sub(M)));
-        }
-
-        public Colour Color() {
-            return M;
-        }
-
-        public Colour Variance() {
-            return (Samples.get() < 2) ? new Colour(0, 0, 0) : V.DivScalar(Samples.get() - 1);
-        }
-
-        public Colour StandardDeviation() {
-            return Variance().Pow(0.5);
-        }
-    }
 }
@@ -24,8 +24,6 @@
 
 package ptjava;
 
-import java.util.concurrent.ThreadLocalRandom;
-
 class Camera {
 
     public Vector p, u, v, w;
@@ -54,7 +52,21 @@ class Camera {
         this.apertureRadius = apertureRadius;
     }
 
-    public Ray CastRay(int x, int y, Integer w, int h, Double u, Double v, ThreadLocalRandom  rand) {
+    public Ray CastRay(int x, int y, Integer w, int h, Double u, Double v, CounterRandom rand) {
+        return castRay(x, y, w, h, u, v, rand.nextDouble(), rand.nextDouble());
+    }
+
+    // pixel offset and lens position both come from the sample stream
+    public Ray CastRay(int x, int y, int w, int h, SampleStream stream) {
+        double u = stream.Next();
+        double v = stream.Next();
+        if (this.apertureRadius > 0) {
+            return castRay(x, y, w, h, u, v, stream.Next(), stream.Next());
+        }
+        return castRay(x, y, w, h, u, v, 0, 0);
+    }
+
+    Ray castRay(int x, int y, int w, int h, double u, double v, double lu, double lv) {
         double aspect = w / (double)h;
         var px = (((double)x + u - 0.5) / ((double)w - 1.0)) * 2 - 1;
         var py = (((double)y + v - 0.5) / ((double)h - 1.0)) * 2 - 1;
@@ -70,8 +82,8 @@ class Camera {
         if (this.apertureRadius > 0)
         {
             var focalPoint = this.p.Add(d.MulScalar(focalDistance));
-            var angle = rand.nextDouble() * 2.0 * Math.PI;
-            var radius = rand.nextDouble() * apertureRadius;
+            var angle = lu * 2.0 * Math.PI;
+            var radius = lv * apertureRadius;
             p = p.Add(this.u.MulScalar(Math.cos(angle) * radius)).Add(this.v.MulScalar(Math.sin(angle) * radius));
             d = focalPoint.Sub(p).Normalize();
         }
@@ -32,15 +32,7 @@ import java.util.Map;
 
 import javax.imageio.ImageIO;
 
-interface Texture {
-    Colour Sample(double u, double v);
-    Vector NormalSample(double u, double v);
-    Vector BumpSample(double u, double v);
-    Texture Pow(double a);
-    Texture MulScalar(double a);
-}
-
-class ColorTexture implements Texture {
+class ColorTexture implements ITexture {
 
     int Width;
     int Height;
@@ -94,10 +86,10 @@ class ColorTexture implements Texture {
                 }
             }
 
-            return (ITexture) new ColorTexture(width, height, data);
+            return new ColorTexture(width, height, data);
         } catch (IOException e) {
             e.printStackTrace();
-            return (ITexture) new ColorTexture();
+            return new ColorTexture();
         }
     }
 
@@ -158,7 +150,7 @@ class ColorTexture implements Texture {
     }
 
     @Override
-    public Texture Pow(double a) {
+    public ITexture Pow(double a) {
         for (int i = 0; i < this.Data.length; i++) {
             this.Data[i] = this.Data[i].Pow(a);
         }
@@ -166,7 +158,7 @@ class ColorTexture implements Texture {
     }
 
     @Override
-    public Texture MulScalar(double a) {
+    public ITexture MulScalar(double a) {
         for (int i = 0; i < this.Data.length; i++) {
             this.Data[i] = this.Data[i].MulScalar(a);
         }
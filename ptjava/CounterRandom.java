@@ -0,0 +1,62 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2023 akava.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package ptjava;
+
+// Stateless counter-based generator: the n-th value of a pixel sample is a
+// PCG hash of (pixel, sample index, n), so it does not depend on the thread,
+// the tile order or how many samples other pixels took. Used for the choices
+// that are not dimensions of the sample sequence, like the reflect/refract
+// pick and the rotation of the sampling frames.
+final class CounterRandom {
+
+    final int Pixel;
+    final int Index;
+    int Counter;
+
+    CounterRandom(int pixel, int index) {
+        this.Pixel = pixel;
+        this.Index = index;
+        this.Counter = 0;
+    }
+
+    double nextDouble() {
+        int c = Counter++;
+        // two 32 bit words give the 53 bits of a double
+        long hi = pcg(Pixel ^ pcg(Index ^ pcg(2 * c))) & 0xffffffffL;
+        long lo = pcg(Pixel ^ pcg(Index ^ pcg(2 * c + 1))) & 0xffffffffL;
+        return SampleGenerator.ToUnit((hi << 32) | lo);
+    }
+
+    int nextInt(int bound) {
+        return Math.min((int) (nextDouble() * bound), bound - 1);
+    }
+
+    // 32 bit PCG output permutation used as a hash (RXS-M-XS)
+    static int pcg(int v) {
+        int state = v * 747796405 + -1403630843;
+        int word = ((state >>> ((state >>> 28) + 4)) ^ state) * 277803737;
+        return (word >>> 22) ^ word;
+    }
+}
@@ -24,7 +24,7 @@
 
 package ptjava;
 
-class Cube extends TransformedShape {
+class Cube extends TransformedShape implements Emitter {
 
     Vector Min;
     Vector Max;
@@ -55,14 +55,98 @@ class Cube extends TransformedShape {
         return Box;
     }
 
+    @Override
+    public double Area() {
+        return area(faces(null));
+    }
+
+    @Override
+    public double Area(Vector p) {
+        return area(faces(p));
+    }
+
+    @Override
+    public SurfacePoint SampleSurface(double u, double v) {
+        return sample(faces(null), u, v);
+    }
+
+    // only the faces turned towards p can light it, the others are behind the cube
+    @Override
+    public SurfacePoint SampleSurface(Vector p, double u, double v) {
+        return sample(faces(p), u, v);
+    }
+
+    // areas of the -x, +x, -y, +y, -z, +z faces, zero for the faces p cannot
+    // see, all of them without a point
+    double[] faces(Vector p) {
+        Vector s = Max.Sub(Min);
+        double sx = s.getX(), sy = s.getY(), sz = s.getZ();
+        double[] area = {sy * sz, sy * sz, sx * sz, sx * sz, sx * sy, sx * sy};
+        if (p != null) {
+            double[] lo = {Min.getX(), Min.getY(), Min.getZ()};
+            double[] hi = {Max.getX(), Max.getY(), Max.getZ()};
+            double[] q = {p.getX(), p.getY(), p.getZ()};
+            for (int a = 0; a < 3; a++) {
+                if (q[a] >= lo[a]) {
+                    area[a * 2] = 0;
+                }
+                if (q[a] <= hi[a]) {
+                    area[a * 2 + 1] = 0;
+                }
+            }
+        }
+        return area;
+    }
+
+    static double area(double[] faces) {
+        double total = 0;
+        for (double a : faces) {
+            total += a;
+        }
+        return total;
+    }
+
+    SurfacePoint sample(double[] area, double u, double v) {
+        double total = area(area);
+        if (total <= 0) {
+            return null;
+        }
+        // u picks one of the faces by area and is reused on it
+        double x = u * total;
+        int face = 0;
+        while (face < 5 && (x >= area[face] || area[face] <= 0)) {
+            x -= area[face++];
+        }
+        while (area[face] <= 0) {
+            face--;
+        }
+        double a = Math.min(Math.max(x / area[face], 0), 1 - 1e-12);
+        double lo = face % 2 == 0 ? 0 : 1;
+        double px, py, pz;
+        Vector n;
+        switch (face / 2) {
+            case 0:
+                px = lo; py = a; pz = v;
+                n = new Vector(lo * 2 - 1, 0, 0);
+                break;
+            case 1:
+                px = a; py = lo; pz = v;
+                n = new Vector(0, lo * 2 - 1, 0);
+                break;
+            default:
+                px = a; py = v; pz = lo;
+                n = new Vector(0, 0, lo * 2 - 1);
+                break;
+        }
+        Vector s = Max.Sub(Min);
+        Vector p = Min.Add(new Vector(px * s.getX(), py * s.getY(), pz * s.getZ()));
+        return new SurfacePoint(this, p, n);
+    }
+
     @Override
     public Hit Intersect(Ray r) {
-        Vector n = Min.Sub(r.Origin).Div(r.Direction);
-        Vector f = Max.Sub(r.Origin).Div(r.Direction);
-        Vector min = n.Min(f);
-        Vector max = n.Max(f);
-        double t0 = Math.max(Math.max(min.getX(), min.getY()), min.getZ());
-        double t1 = Math.min(Math.min(max.getX(), max.getY()), max.getZ());
+        double t0 = Box.Near(r);
+        double t1 = Box.Far(r);
 
         if (t0 > 0 && t0 < t1) {
             return new Hit(this, t0, null); // Assuming this constructor for Hit
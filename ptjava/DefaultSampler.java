@@ -24,20 +24,26 @@
 
 package ptjava;
 
-import java.util.concurrent.ThreadLocalRandom;
-
 interface Sampler {
-    Colour Sample(Scene scene, Ray ray, ThreadLocalRandom  rand);
+    Colour Sample(Scene scene, Ray ray, SampleStream stream);
 }
 
 class DefaultSampler implements Sampler {
 
+    // relative margin keeping shadow rays from hitting the light they aim at
+    static final double EPS = 1e-6;
+
     int FirstHitSamples;
     int MaxBounces;
     boolean DirectLighting;
     boolean SoftShadows;
+    // paths end at random once past RouletteDepth, survivors are reweighted
+    boolean RussianRoulette;
+    int RouletteDepth;
     LightMode lightMode;
     SpecularMode specularMode;
+    // estimates diffuse interreflection when set
+    IrradianceCache irradianceCache;
 
     DefaultSampler() {
 
@@ -48,6 +54,8 @@ class DefaultSampler implements Sampler {
         this.MaxBounces = maxBounces;
         this.DirectLighting = true;
         this.SoftShadows = true;
+        this.RussianRoulette = true;
+        this.RouletteDepth = 3;
         this.lightMode = LightMode.LightModeRandom;
         this.specularMode = SpecularMode.SpecularModeNaive;
     }
@@ -61,37 +69,43 @@ class DefaultSampler implements Sampler {
     }
 
     @Override
-    public Colour Sample(Scene scene, Ray ray, ThreadLocalRandom rand) {
+    public Colour Sample(Scene scene, Ray ray, SampleStream stream) {
 
-        return sample(scene, ray, true, FirstHitSamples, 0, rand);
+        return sample(scene, ray, 0, FirstHitSamples, 0, stream);
     }
 
-    Colour sample(Scene scene, Ray ray, boolean emission, int samples, int depth, ThreadLocalRandom rand) {
+    // pdf is the solid angle pdf of the bounce that produced ray, 0 for camera
+    // rays and delta lobes, and weights the emission the ray finds against the
+    // light samples taken at the previous hit
+    Colour sample(Scene scene, Ray ray, double pdf, int samples, int depth, SampleStream stream) {
         if (depth > MaxBounces) {
             return Colour.Black;
         }
 
-        Hit hit = scene.Intersect(ray);
+        if (samples == 1 && !branches(depth)) {
+            return path(scene, ray, pdf, depth, stream);
+        }
+
+        Hit hit = intersect(scene, ray, stream);
 
         if (!hit.Ok()) {
-            return sampleEnvironment(scene, ray);
+            return sampleEnvironment(scene, ray).MulScalar(environmentWeight(scene, ray, pdf));
         }
 
         var info = hit.Info(ray);
+        recordFirstHit(stream, depth, hit, info);
         var material = info.material;
         var result = Colour.Black;
 
         if (material.Emittance > 0) {
-            if (this.DirectLighting && !emission) {
-                return Colour.Black;
-            }
-            result = result.Add(material.Color.MulScalar(material.Emittance * samples));
+            double w = emissionWeight(scene, ray, hit, pdf);
+            result = result.Add(material.Color.MulScalar(material.Emittance * samples * w));
         }
 
         int n = (int) Math.sqrt(samples);
         BounceType ma, mb;
 
-        if (this.specularMode == SpecularMode.SpecularModeAll || (depth == 0 && this.specularMode == SpecularMode.SpecularModeFirst)) {
+        if (branches(depth)) {
             ma = BounceType.BounceTypeDiffuse;
             mb = BounceType.BounceTypeSpecular;
         } else {
@@ -102,12 +116,11 @@ class DefaultSampler implements Sampler {
         try {
             for (int u = 0; u < n; u++) {
                 for (int v = 0; v < n; v++) {
-                    double fu = (u + rand.nextDouble()) / n;
-                    double fv = (v + rand.nextDouble()) / n;
+                    double fu = (u + stream.Next()) / n;
+                    double fv = (v + stream.Next()) / n;
                     for (BounceType mode = ma; mode.compareTo(mb) <= 0; mode = mode.next()) {
-                        var bounceResult = ray.Bounce(info, fu, fv, mode, rand);
+                        var bounceResult = ray.Bounce(info, fu, fv, mode, stream.Random);
                         Ray newRay = bounceResult.getRay();
-                        boolean reflected = bounceResult.isReflected();
                         double p = bounceResult.getProbability();
 
                         if (mode == BounceType.BounceTypeAny) {
@@ -115,19 +128,18 @@ class DefaultSampler implements Sampler {
                         }
 
                         if (p > 0) {
-                            var indirect = sample(scene, newRay, reflected, 1, depth + 1, rand);
-                            if (reflected) {
-                                // specular
-                                Colour tinted = indirect.Mix(material.Color.Mul(indirect), material.Tint);
-                                result = result.Add(tinted.MulScalar(p));
+                            Colour indirect;
+                            if (cached(bounceResult, depth, stream)) {
+                                indirect = irradianceCache.Lookup(this, scene, info, depth, stream);
                             } else {
-                                // diffuse
-                                Colour direct = Colour.Black;
-                                if (DirectLighting) {
-                                    direct = sampleLights(scene, info.Ray, rand);
-                                }
-                                result = result.Add(material.Color.Mul(direct.Add(indirect)).MulScalar(p));
+                                indirect = sample(scene, newRay, bounceResult.Pdf(newRay.Direction), 1, depth + 1, stream);
+                            }
+                            Colour direct = Colour.Black;
+                            if (DirectLighting && bounceResult.getLobe() != Lobe.LobeSpecular) {
+                                direct = sampleLights(scene, info.Ray, stream, bounceResult, depth >= MaxBounces);
                             }
+                            Colour lobe = lobeColor(material, bounceResult.isReflected());
+                            result = result.Add(lobe.Mul(direct.Add(indirect)).MulScalar(p));
                         }
 
                         if (mode == mb) {
@@ -142,6 +154,126 @@ class DefaultSampler implements Sampler {
         return result.DivScalar(n * n);
     }    
 
+    // whether a hit at this depth follows both the diffuse and the specular lobe
+    boolean branches(int depth) {
+        return this.specularMode == SpecularMode.SpecularModeAll || (depth == 0 && this.specularMode == SpecularMode.SpecularModeFirst);
+    }
+
+    // single path from ray onwards, same estimate as sample with one sample
+    // and no branching, but a loop carrying the throughput in doubles
+    Colour path(Scene scene, Ray ray, double pdf, int depth, SampleStream stream) {
+        double tr = 1, tg = 1, tb = 1;
+        double r = 0, g = 0, b = 0;
+
+        for (; depth <= MaxBounces; depth++) {
+            Hit hit = intersect(scene, ray, stream);
+
+            if (!hit.Ok()) {
+                Colour c = sampleEnvironment(scene, ray);
+                double w = environmentWeight(scene, ray, pdf);
+                r += tr * c.r * w;
+                g += tg * c.g * w;
+                b += tb * c.b * w;
+                break;
+            }
+
+            var info = hit.Info(ray);
+            recordFirstHit(stream, depth, hit, info);
+            var material = info.material;
+            var color = material.Color;
+
+            if (material.Emittance > 0) {
+                double e = material.Emittance * emissionWeight(scene, ray, hit, pdf);
+                r += tr * color.r * e;
+                g += tg * color.g * e;
+                b += tb * color.b * e;
+            }
+
+            double fu = stream.Next();
+            double fv = stream.Next();
+            var bounceResult = ray.Bounce(info, fu, fv, BounceType.BounceTypeAny, stream.Random);
+
+            if (bounceResult.isReflected()) {
+                // specular
+                double tint = material.Tint;
+                tr *= (1 - tint) + tint * color.r;
+                tg *= (1 - tint) + tint * color.g;
+                tb *= (1 - tint) + tint * color.b;
+            } else {
+                // diffuse
+                tr *= color.r;
+                tg *= color.g;
+                tb *= color.b;
+            }
+
+            if (DirectLighting && bounceResult.getLobe() != Lobe.LobeSpecular) {
+                Colour direct = sampleLights(scene, info.Ray, stream, bounceResult, depth >= MaxBounces);
+                r += tr * direct.r;
+                g += tg * direct.g;
+                b += tb * direct.b;
+            }
+
+            if (cached(bounceResult, depth, stream)) {
+                Colour e = irradianceCache.Lookup(this, scene, info, depth, stream);
+                r += tr * e.r;
+                g += tg * e.g;
+                b += tb * e.b;
+                break;
+            }
+
+            ray = bounceResult.getRay();
+            pdf = bounceResult.Pdf(ray.Direction);
+
+            if (RussianRoulette && depth + 1 >= RouletteDepth) {
+                double q = roulette(tr, tg, tb);
+                if (q <= 0 || stream.Random.nextDouble() >= q) {
+                    break;
+                }
+                tr /= q;
+                tg /= q;
+                tb /= q;
+            }
+        }
+        return new Colour(r, g, b);
+    }
+
+    // the path's next hit may be known already, it is used once
+    static Hit intersect(Scene scene, Ray ray, SampleStream stream) {
+        Hit hit = stream.Primary;
+        if (hit != null) {
+            stream.Primary = null;
+            return hit;
+        }
+        return scene.Intersect(ray);
+    }
+
+    // whether the indirect light of this bounce comes from the irradiance cache
+    boolean cached(Ray.BounceResult bounce, int depth, SampleStream stream) {
+        return irradianceCache != null && !stream.Gathering && bounce.getLobe() == Lobe.LobeDiffuse && depth < MaxBounces;
+    }
+
+    static void recordFirstHit(SampleStream stream, int depth, Hit hit, Hit.HitInfo info) {
+        if (depth == 0) {
+            stream.First = info;
+            stream.FirstT = hit.T;
+        }
+    }
+
+    // survival probability of a path with this throughput
+    static double roulette(double tr, double tg, double tb) {
+        return Math.min(1, Math.max(tr, Math.max(tg, tb)));
+    }
+
+    // weight of a lobe: the material colour for diffuse, the tinted white for reflections
+    static Colour lobeColor(Material material, boolean reflected) {
+        if (!reflected) {
+            return material.Color;
+        }
+        double t = material.Tint;
+        Colour c = material.Color;
+        return new Colour((1 - t) + t * c.r, (1 - t) + t * c.g, (1 - t) + t * c.b);
+    }
+
     Colour sampleEnvironment(Scene scene, Ray ray) {
         if (scene.Texture != null) {
             Vector d = ray.Direction;
@@ -154,96 +286,269 @@ class DefaultSampler implements Sampler {
         return scene.Color;
     }
 
-    Colour sampleLights(Scene scene, Ray n, ThreadLocalRandom rand) {
-        int nLights = scene.Lights.length;
-        if (nLights == 0) {
-            return Colour.Black;
+    // light samples at a hit weighted against the sampled lobe, still to be
+    // multiplied by the lobe colour, last when the bounce ray is not followed
+    Colour sampleLights(Scene scene, Ray n, SampleStream stream, Ray.BounceResult bounce, boolean last) {
+        Colour result = Colour.Black;
+        for (LightSample ls : lightSamples(scene, n, stream)) {
+            if (ls != null && !scene.Occluded(ls.Ray, ls.MaxT)) {
+                result = result.Add(ls.Color.MulScalar(lightWeight(ls, bounce, last)));
+            }
         }
+        return result;
+    }
 
-        if (lightMode == LightMode.LightModeAll) {
-            Colour result = new Colour();
-            for (IShape light : scene.Lights) {
-                if (light != null) {
-                    result = result.Add(sampleLight(scene, n, rand, light));
+    // unshadowed light samples for the light mode, null where a light
+    // contributes nothing, the visibility test is left to the caller. An
+    // environment map adds a last entry sampled from its own distribution.
+    LightSample[] lightSamples(Scene scene, Ray n, SampleStream stream) {
+        int nLights = scene.Lights.length;
+        LightSample[] result = new LightSample[lightSampleCount(scene)];
+
+        if (nLights > 0) {
+            if (lightMode == LightMode.LightModeAll) {
+                for (int i = 0; i < nLights; i++) {
+                    if (scene.Lights[i] != null) {
+                        result[i] = lightSample(scene, n, stream, scene.Lights[i], 1);
+                    }
                 }
+            } else {
+                // pick one light
+                int i = pickLight(scene, n.Origin, stream.Next());
+                result[0] = lightSample(scene, n, stream, scene.Lights[i], selectPdf(scene, n.Origin, i));
             }
-            return result;
-        } else {
-            // pick a random light
-            IShape light = scene.Lights[rand.nextInt(nLights)];
-            return sampleLight(scene, n, rand, light).MulScalar((double)nLights);
         }
+
+        if (scene.environment != null) {
+            result[result.length - 1] = environmentSample(scene, n, stream);
+        }
+        return result;
     }
 
-    Colour sampleLight(Scene scene, Ray n, ThreadLocalRandom rand, IShape light) {
-        Vector center = new Vector();
-        double radius = 0;
+    // direction drawn from the environment map, unoccluded it reaches the sky
+    LightSample environmentSample(Scene scene, Ray n, SampleStream stream) {
+        double u = stream.Next();
+        double v = stream.Next();
+        Vector d = scene.environment.Sample(u, v);
+        if (d.Dot(n.Direction) <= 0) {
+            return null;
+        }
+        Ray ray = new Ray(n.Origin, d);
+        return new LightSample(ray, Hit.INF, sampleEnvironment(scene, ray), scene.environment.Pdf(d));
+    }
 
-        if (light != null) {
-            if (light instanceof Sphere) {
-                radius = ((Sphere) light).Radius;
-                center = ((Sphere) light).Center;
-            } else {
-                Box box = light.BoundingBox();
-                radius = box.OuterRadius();
-                center = box.Center();
-            }
+    // power heuristic weight of the environment seen by a bounce with this pdf
+    double environmentWeight(Scene scene, Ray ray, double pdf) {
+        if (!DirectLighting || pdf <= 0 || scene.environment == null) {
+            return 1;
+        }
+        double pe = scene.environment.Pdf(ray.Direction);
+        return pdf * pdf / (pdf * pdf + pe * pe);
+    }
+
+    // index of the light the light mode picks at point p with u in [0, 1)
+    int pickLight(Scene scene, Vector p, double u) {
+        int nLights = scene.Lights.length;
+        if (lightMode == LightMode.LightModeTree && scene.lightTree != null) {
+            return scene.lightTree.Sample(p, u);
         }
+        if (lightMode == LightMode.LightModePower && scene.lightPowers != null) {
+            return scene.lightPowers.Sample(u);
+        }
+        return Math.min((int) (u * nLights), nLights - 1);
+    }
 
-        Vector point = center;
+    // chance of the light mode sampling light i at point p
+    double selectPdf(Scene scene, Vector p, int i) {
+        if (lightMode == LightMode.LightModeAll) {
+            return 1;
+        }
+        if (lightMode == LightMode.LightModeTree && scene.lightTree != null) {
+            return scene.lightTree.Pdf(p, i);
+        }
+        if (lightMode == LightMode.LightModePower && scene.lightPowers != null) {
+            return scene.lightPowers.Pdf(i);
+        }
+        return 1.0 / scene.Lights.length;
+    }
+
+    // number of entries lightSamples returns
+    int lightSampleCount(Scene scene) {
+        int n = scene.Lights.length == 0 ? 0 : lightMode == LightMode.LightModeAll ? scene.Lights.length : 1;
+        return scene.environment != null ? n + 1 : n;
+    }
 
+    // samples a point uniformly on an emitter's surface, or a direction
+    // uniformly in the cone the bounding sphere of any other light subtends,
+    // selectPdf is the chance the light mode picked this light
+    LightSample lightSample(Scene scene, Ray n, SampleStream stream, IShape light, double selectPdf) {
+        if (light instanceof Emitter) {
+            return emitterSample(n, stream, (Emitter) light, selectPdf);
+        }
+
+        Vector center = lightCenter(light);
+        Vector l = center.Sub(n.Origin);
+        double span = coneSpan(l.Length(), lightRadius(light));
+        l = l.Normalize();
+
+        double u = 0, v = 0;
         if (this.SoftShadows) {
-            while (true) {
-                double x = rand.nextDouble() * 2 - 1;
-                double y = rand.nextDouble() * 2 - 1;
-                if (x * x + y * y <= 1) {
-                    Vector l = center.Sub(n.Origin).Normalize();
-                    Vector u = l.Cross(Vector.RandomUnitVector(rand)).Normalize();
-                    Vector v = l.Cross(u);
-                    point = center.Add(u.MulScalar(x * radius)).Add(v.MulScalar(y * radius));
-                    break;
-                }
-            }
+            u = stream.Next();
+            v = stream.Next();
         }
 
-        // Construct ray toward light point
-        Ray ray = new Ray(n.Origin, point.Sub(n.Origin).Normalize());
+        double cosTheta = 1 - u * span;
+        double sinTheta = Math.sqrt(Math.max(0, 1 - cosTheta * cosTheta));
+        double phi = 2 * Math.PI * v;
+        Vector a = Math.abs(l.getX()) > 0.9 ? new Vector(0, 1, 0) : new Vector(1, 0, 0);
+        Vector s = l.Cross(a).Normalize();
+        Vector t = l.Cross(s);
+        Vector d = s.MulScalar(sinTheta * Math.cos(phi)).Add(t.MulScalar(sinTheta * Math.sin(phi))).Add(l.MulScalar(cosTheta));
+        Ray ray = new Ray(n.Origin, d);
+
+        // light below the surface
+        if (d.Dot(n.Direction) <= 0) {
+            return null;
+        }
 
-        // Get cosine term
-        double diffuse = ray.Direction.Dot(n.Direction);
+        // Find the light along the ray, anything in front of it blocks it
+        Hit hit = light.Intersect(ray);
 
-        if (diffuse <= 0) {
-            return Colour.Black;
+        if (!hit.Ok()) {
+            return null;
         }
 
-        // Check for light visibility
-        Hit hit = scene.Intersect(ray);
+        Material material = Material.MaterialAt(light, ray.Position(hit.T));
+        double pdf = selectPdf / (2 * Math.PI * span);
+        return new LightSample(ray, hit.T * (1 - EPS), material.Color.MulScalar(material.Emittance), pdf);
+    }
 
-        if (!hit.Ok() || hit.Shape != light) {
-            return Colour.Black;
+    LightSample emitterSample(Ray n, SampleStream stream, Emitter light, double selectPdf) {
+        double u = 0.5, v = 0.5;
+        if (this.SoftShadows) {
+            u = stream.Next();
+            v = stream.Next();
         }
 
-        // Compute solid angle (hemisphere coverage)
-        double hyp = center.Sub(n.Origin).Length();
-        double opp = radius;
-        double theta = Math.asin(opp / hyp);
-        double adj = opp / Math.tan(theta);
-        double d = Math.cos(theta) * adj;
-        double r = Math.sin(theta) * adj;
-        double coverage = (r * r) / (d * d);
+        Emitter.SurfacePoint sp = light.SampleSurface(n.Origin, u, v);
+        if (sp == null) {
+            return null;
+        }
+        Vector d = sp.Position.Sub(n.Origin);
+        double dist = d.Length();
+        d = d.DivScalar(dist);
+
+        // light below the surface, or seen edge on
+        double cosL = Math.abs(sp.Normal.Dot(d));
+        if (d.Dot(n.Direction) <= 0 || cosL <= 0) {
+            return null;
+        }
+
+        // area pdf turned into solid angle
+        double pdf = selectPdf * dist * dist / (cosL * light.Area(n.Origin));
+        Material material = Material.MaterialAt(sp.Shape, sp.Position);
+        return new LightSample(new Ray(n.Origin, d), dist * (1 - EPS), material.Color.MulScalar(material.Emittance), pdf);
+    }
 
-        if (hyp < opp) {
-            coverage = 1;
+    // pdf of the light strategy producing the hit the ray found, 0 when it
+    // is not one of the scene's lights
+    double lightPdf(Scene scene, Ray ray, Hit hit) {
+        int i = lightIndex(scene, ray, hit);
+        if (i < 0) {
+            return 0;
         }
+        IShape light = scene.Lights[i];
+        if (light instanceof Emitter) {
+            Vector p = ray.Position(hit.T);
+            double cosL = Math.abs(geometricNormal(hit, p).Dot(ray.Direction));
+            if (cosL <= 0) {
+                return 0;
+            }
+            return selectPdf(scene, ray.Origin, i) * hit.T * hit.T / (cosL * ((Emitter) light).Area(ray.Origin));
+        }
+        double span = coneSpan(lightCenter(light).Sub(ray.Origin).Length(), lightRadius(light));
+        return selectPdf(scene, ray.Origin, i) / (2 * Math.PI * span);
+    }
 
-        coverage = Math.min(coverage, 1);
+    // light the hit belongs to, -1 for none. Lights that are primitives are
+    // found directly, the others by which light meets the ray at the same distance
+    static int lightIndex(Scene scene, Ray ray, Hit hit) {
+        if (scene.lightTree != null) {
+            Integer i = scene.lightTree.Index.get(hit.Shape);
+            if (i != null) {
+                return i;
+            }
+        }
+        for (int i = 0; i < scene.Lights.length; i++) {
+            IShape light = scene.Lights[i];
+            if (light != null && Math.abs(light.Intersect(ray).T - hit.T) <= EPS * hit.T) {
+                return i;
+            }
+        }
+        return -1;
+    }
 
-        // Get material properties from light
-        Material material = Material.MaterialAt(light, point);
+    // power heuristic weight of emission found by a bounce with this pdf
+    double emissionWeight(Scene scene, Ray ray, Hit hit, double pdf) {
+        if (!DirectLighting || pdf <= 0) {
+            return 1;
+        }
+        double pl = lightPdf(scene, ray, hit);
+        return pdf * pdf / (pdf * pdf + pl * pl);
+    }
 
-        // Combine factors
-        double m = material.Emittance * diffuse * coverage;
-        return material.Color.MulScalar(m);
+    // power heuristic weight of a light sample over its pdf, the lobe's
+    // f cos is its colour times its pdf so that is left out. On the last
+    // bounce no ray is traced to find the light, the sample takes it all
+    static double lightWeight(LightSample ls, Ray.BounceResult bounce, boolean last) {
+        double pb = bounce.Pdf(ls.Ray.Direction);
+        double pl = ls.Pdf;
+        if (last) {
+            return pl > 0 ? pb / pl : 0;
+        }
+        return pb * pl / (pl * pl + pb * pb);
+    }
+
+    // face normal of a triangle, the shape's own normal otherwise; hits on an
+    // instance take the normal in its space out to the world
+    static Vector geometricNormal(Hit hit, Vector p) {
+        if (hit.Instance != null) {
+            Vector local = geometricNormal(hit.Local, hit.LocalRay.Position(hit.Local.T));
+            return hit.Instance.NormalMatrix.MulDirection(local).Normalize();
+        }
+        if (hit.Triangles != null) {
+            return hit.Triangles.Normal(hit.Index);
+        }
+        IShape shape = hit.Shape;
+        if (shape instanceof Triangle) {
+            Triangle t = (Triangle) shape;
+            return t.V2.Sub(t.V1).Cross(t.V3.Sub(t.V1)).Normalize();
+        }
+        return shape.NormalAt(p);
+    }
+
+    static Vector lightCenter(IShape light) {
+        if (light instanceof Sphere) {
+            return ((Sphere) light).Center;
+        }
+        return light.BoundingBox().Center();
+    }
+
+    static double lightRadius(IShape light) {
+        if (light instanceof Sphere) {
+            return ((Sphere) light).Radius;
+        }
+        return light.BoundingBox().OuterRadius();
+    }
+
+    // 1 - cos of the half angle of the cone a sphere subtends, 2 from inside
+    // it, written so that it keeps its precision for small and distant lights
+    static double coneSpan(double distance, double radius) {
+        if (distance <= radius) {
+            return 2;
+        }
+        double s = radius / distance;
+        return s * s / (1 + Math.sqrt(1 - s * s));
     }
 
     public void SetSpecularMode(SpecularMode sm) {
@@ -254,4 +559,24 @@ class DefaultSampler implements Sampler {
         this.lightMode = lm;
     }
 
+    public void SetIrradianceCache(IrradianceCache cache) {
+        this.irradianceCache = cache;
+    }
+
+    static class LightSample {
+
+        Ray Ray;
+        double MaxT;
+        // emitted radiance and the solid angle pdf of the sample
+        Colour Color;
+        double Pdf;
+
+        LightSample(Ray ray, double maxT, Colour color, double pdf) {
+            this.Ray = ray;
+            this.MaxT = maxT;
+            this.Color = color;
+            this.Pdf = pdf;
+        }
+    }
+
 }
@@ -0,0 +1,187 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2023 akava.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package ptjava;
+
+import java.util.stream.IntStream;
+
+// Edge-avoiding a-trous wavelet filter (Dammertz et al.) for finishing a
+// noisy buffer. Each pass applies a 5x5 B3 spline kernel with holes of
+// 2^pass pixels, so a few passes cover a wide footprint, and every tap is
+// weighted down where the first-hit albedo, normal or depth differ or where
+// the colour differs by more than the pixel's noise explains. The variance
+// of the mean is filtered along with the colour so later passes trust the
+// already smoothed result more.
+class Denoiser {
+
+    static final double[] Kernel = {1.0 / 16, 1.0 / 4, 3.0 / 8, 1.0 / 4, 1.0 / 16};
+    static final int TileSize = 32;
+
+    int Passes;
+    double SigmaColor;
+    double SigmaNormal;
+    double SigmaDepth;
+    double SigmaAlbedo;
+
+    Denoiser() {
+    }
+
+    static Denoiser NewDenoiser() {
+        Denoiser d = new Denoiser();
+        d.Passes = 5;
+        d.SigmaColor = 4;
+        d.SigmaNormal = 64;
+        d.SigmaDepth = 0.05;
+        d.SigmaAlbedo = 0.1;
+        return d;
+    }
+
+    // copy of buf with the colour filtered, the other channels are kept
+    Buffer Denoise(Buffer buf) {
+        int w = buf.W;
+        int h = buf.H;
+        int n = w * h;
+        double[] color = buf.M.clone();
+        double[] variance = new double[n];
+        for (int i = 0; i < n; i++) {
+            int s = buf.Samples[i];
+            if (s > 1) {
+                // variance of the mean, averaged over the channels
+                variance[i] = (buf.V[i * 3] + buf.V[i * 3 + 1] + buf.V[i * 3 + 2]) / (3.0 * (s - 1) * s);
+            } else {
+                // too few passes to know, fall back on the spread of the neighbours
+                variance[i] = spatialVariance(buf, i % w, i / w);
+            }
+        }
+
+        double[] nextColor = new double[n * 3];
+        double[] nextVariance = new double[n];
+        int tilesX = (w + TileSize - 1) / TileSize;
+        int tilesY = (h + TileSize - 1) / TileSize;
+
+        for (int pass = 0; pass < Passes; pass++) {
+            final int step = 1 << pass;
+            final double[] c = color, v = variance, nc = nextColor, nv = nextVariance;
+            IntStream.range(0, tilesX * tilesY).parallel().forEach(tile -> {
+                int x0 = (tile % tilesX) * TileSize;
+                int y0 = (tile / tilesX) * TileSize;
+                for (int y = y0; y < Math.min(y0 + TileSize, h); y++) {
+                    for (int x = x0; x < Math.min(x0 + TileSize, w); x++) {
+                        filter(buf, c, v, nc, nv, x, y, step);
+                    }
+                }
+            });
+            double[] t = color;
+            color = nextColor;
+            nextColor = t;
+            t = variance;
+            variance = nextVariance;
+            nextVariance = t;
+        }
+
+        return new Buffer(w, h, color, buf.V.clone(), buf.Samples.clone(),
+                buf.Albedo.clone(), buf.Normal.clone(), buf.Depth.clone(), buf.FeatureSamples.clone());
+    }
+
+    void filter(Buffer buf, double[] color, double[] variance, double[] outColor, double[] outVariance, int x, int y, int step) {
+        int w = buf.W;
+        int p = y * w + x;
+        double lp = luminance(color, p);
+        double sigmaL = SigmaColor * Math.sqrt(variance[p]) + 1e-6;
+        double zp = buf.Depth[p];
+        double sigmaZ = SigmaDepth * step * Math.abs(zp) + 1e-6;
+
+        double sumW = 0, sumR = 0, sumG = 0, sumB = 0, sumV = 0;
+        for (int dy = -2; dy <= 2; dy++) {
+            int qy = y + dy * step;
+            if (qy < 0 || qy >= buf.H) {
+                continue;
+            }
+            for (int dx = -2; dx <= 2; dx++) {
+                int qx = x + dx * step;
+                if (qx < 0 || qx >= w) {
+                    continue;
+                }
+                int q = qy * w + qx;
+                double wt = Kernel[dx + 2] * Kernel[dy + 2];
+                if (q != p) {
+                    double wl = Math.abs(lp - luminance(color, q)) / sigmaL;
+                    double wz = Math.abs(zp - buf.Depth[q]) / sigmaZ;
+                    double wa = albedoDistance(buf.Albedo, p, q) / (SigmaAlbedo * SigmaAlbedo);
+                    wt *= Math.exp(-wl - wz - wa) * Math.pow(normalSimilarity(buf.Normal, p, q), SigmaNormal);
+                }
+                sumW += wt;
+                sumR += wt * color[q * 3];
+                sumG += wt * color[q * 3 + 1];
+                sumB += wt * color[q * 3 + 2];
+                sumV += wt * wt * variance[q];
+            }
+        }
+
+        outColor[p * 3] = sumR / sumW;
+        outColor[p * 3 + 1] = sumG / sumW;
+        outColor[p * 3 + 2] = sumB / sumW;
+        outVariance[p] = sumV / (sumW * sumW);
+    }
+
+    static double spatialVariance(Buffer buf, int x, int y) {
+        double sum = 0, sum2 = 0;
+        int count = 0;
+        for (int qy = Math.max(0, y - 1); qy <= Math.min(buf.H - 1, y + 1); qy++) {
+            for (int qx = Math.max(0, x - 1); qx <= Math.min(buf.W - 1, x + 1); qx++) {
+                double l = luminance(buf.M, qy * buf.W + qx);
+                sum += l;
+                sum2 += l * l;
+                count++;
+            }
+        }
+        double mean = sum / count;
+        return Math.max(0, sum2 / count - mean * mean);
+    }
+
+    static double luminance(double[] c, int i) {
+        return 0.2126 * c[i * 3] + 0.7152 * c[i * 3 + 1] + 0.0722 * c[i * 3 + 2];
+    }
+
+    static double albedoDistance(double[] a, int p, int q) {
+        double dr = a[p * 3] - a[q * 3];
+        double dg = a[p * 3 + 1] - a[q * 3 + 1];
+        double db = a[p * 3 + 2] - a[q * 3 + 2];
+        return dr * dr + dg * dg + db * db;
+    }
+
+    // cosine between the mean normals, 1 where neither pixel hit anything
+    static double normalSimilarity(double[] n, int p, int q) {
+        double lp = n[p * 3] * n[p * 3] + n[p * 3 + 1] * n[p * 3 + 1] + n[p * 3 + 2] * n[p * 3 + 2];
+        double lq = n[q * 3] * n[q * 3] + n[q * 3 + 1] * n[q * 3 + 1] + n[q * 3 + 2] * n[q * 3 + 2];
+        if (lp == 0 && lq == 0) {
+            return 1;
+        }
+        if (lp == 0 || lq == 0) {
+            return 0;
+        }
+        double d = n[p * 3] * n[q * 3] + n[p * 3 + 1] * n[q * 3 + 1] + n[p * 3 + 2] * n[q * 3 + 2];
+        return Math.max(0, d / Math.sqrt(lp * lq));
+    }
+}
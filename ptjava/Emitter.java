@@ -0,0 +1,61 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2023 akava.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package ptjava;
+
+// Shapes that can be sampled uniformly by area when they are lights, so that
+// light samples land on the surface instead of the shape's bounding sphere.
+interface Emitter {
+
+    // emitting surface area
+    double Area();
+
+    // point on the emitting surface, uniform in area for u, v in [0, 1)
+    SurfacePoint SampleSurface(double u, double v);
+
+    // area of the part of the surface that can light point p, the part
+    // SampleSurface(p, u, v) draws from
+    default double Area(Vector p) {
+        return Area();
+    }
+
+    // point on the part of the surface that can light point p, uniform in
+    // area, null when there is none
+    default SurfacePoint SampleSurface(Vector p, double u, double v) {
+        return SampleSurface(u, v);
+    }
+
+    class SurfacePoint {
+
+        IShape Shape;
+        Vector Position;
+        Vector Normal;
+
+        SurfacePoint(IShape shape, Vector position, Vector normal) {
+            this.Shape = shape;
+            this.Position = position;
+            this.Normal = normal;
+        }
+    }
+}
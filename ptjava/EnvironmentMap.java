@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2023 akava.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package ptjava;
+
+// Importance sampling table over the scene's lat-long environment texture.
+// The texture is tabulated on a grid in the (u, v) mapping sampleEnvironment
+// uses, every cell weighted by its luminance times the cosine of its
+// elevation, and directions are drawn through the marginal distribution of
+// the rows and the conditional distribution of the columns in a row.
+class EnvironmentMap {
+
+    static final int MaxWidth = 1024;
+    static final int MaxHeight = 512;
+
+    ITexture Texture;
+    double TextureAngle;
+    int W, H;
+    // cell weights, the row cdfs (W + 1 per row) and the cdf over the rows
+    double[] Func;
+    double[] Conditional;
+    double[] Marginal;
+    double Total;
+
+    EnvironmentMap(ITexture texture, double textureAngle) {
+        this.Texture = texture;
+        this.TextureAngle = textureAngle;
+        if (texture instanceof ColorTexture && ((ColorTexture) texture).Width > 0) {
+            W = Math.min(((ColorTexture) texture).Width, MaxWidth);
+            H = Math.min(((ColorTexture) texture).Height, MaxHeight);
+        } else {
+            W = MaxWidth / 2;
+            H = MaxHeight / 2;
+        }
+
+        Func = new double[W * H];
+        double sum = 0;
+        for (int y = 0; y < H; y++) {
+            double v = (y + 0.5) / H;
+            double c = Math.cos(Math.PI * v - Math.PI / 2);
+            for (int x = 0; x < W; x++) {
+                Colour t = texture.Sample((x + 0.5) / W, v);
+                Func[y * W + x] = Math.max((t.r + t.g + t.b) / 3, 0) * c;
+                sum += Func[y * W + x];
+            }
+        }
+        // keep every cell the texture can be seen through samplable, the
+        // bilinear lookup reaches past black cells
+        double floor = Math.max(sum / (W * H), Util.EPS) * 1e-3;
+        for (int y = 0; y < H; y++) {
+            double c = Math.cos(Math.PI * (y + 0.5) / H - Math.PI / 2);
+            for (int x = 0; x < W; x++) {
+                Func[y * W + x] += floor * c;
+            }
+        }
+
+        Conditional = new double[H * (W + 1)];
+        Marginal = new double[H + 1];
+        for (int y = 0; y < H; y++) {
+            int o = y * (W + 1);
+            for (int x = 0; x < W; x++) {
+                Conditional[o + x + 1] = Conditional[o + x] + Func[y * W + x];
+            }
+            Marginal[y + 1] = Marginal[y] + Conditional[o + W];
+        }
+        Total = Marginal[H];
+    }
+
+    static EnvironmentMap NewEnvironmentMap(ITexture texture, double textureAngle) {
+        return new EnvironmentMap(texture, textureAngle);
+    }
+
+    // direction for u1, u2 in [0, 1)
+    Vector Sample(double u1, double u2) {
+        int y = find(Marginal, 0, H, u1 * Total);
+        double rowStart = Marginal[y];
+        double rowSum = Marginal[y + 1] - rowStart;
+        double fy = (u1 * Total - rowStart) / rowSum;
+
+        int o = y * (W + 1);
+        double target = u2 * Conditional[o + W];
+        int x = find(Conditional, o, W, target);
+        double fx = (target - Conditional[o + x]) / (Conditional[o + x + 1] - Conditional[o + x]);
+
+        double u = (x + fx) / W;
+        double v = (y + fy) / H;
+        return direction(u, v);
+    }
+
+    // solid angle pdf of Sample returning d
+    double Pdf(Vector d) {
+        double dx = d.getX(), dy = d.getY(), dz = d.getZ();
+        double u = Math.atan2(dz, dx) + TextureAngle;
+        double v = Math.atan2(dy, Math.sqrt(dx * dx + dz * dz));
+        double c = Math.cos(v);
+        if (c <= 0) {
+            return 0;
+        }
+        u = Util.Fract((u + Math.PI) / (2 * Math.PI));
+        v = (v + Math.PI / 2) / Math.PI;
+        int x = Math.min((int) (u * W), W - 1);
+        int y = Math.min((int) (v * H), H - 1);
+        double pdfUV = Func[y * W + x] * W * H / Total;
+        return pdfUV / (2 * Math.PI * Math.PI * c);
+    }
+
+    // inverse of the mapping in DefaultSampler.sampleEnvironment
+    Vector direction(double u, double v) {
+        double a = u * 2 * Math.PI - Math.PI - TextureAngle;
+        double e = v * Math.PI - Math.PI / 2;
+        double c = Math.cos(e);
+        return new Vector(c * Math.cos(a), Math.sin(e), c * Math.sin(a));
+    }
+
+    // last index i in [0, n) of the cdf starting at offset with cdf[offset + i] <= x
+    static int find(double[] cdf, int offset, int n, double x) {
+        int lo = 0, hi = n - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (cdf[offset + mid] <= x) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+}
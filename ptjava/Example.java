@@ -32,6 +32,10 @@ import javax.swing.JPanel;
 
 public class Example {
 
+    // how every example renders, RenderModeWavefront runs them through the
+    // batched path tracer with the same sampler settings
+    static RenderMode Mode = RenderMode.RenderModeTiles;
+
     Example() {
     }
 
@@ -57,6 +61,7 @@ public class Example {
         Camera camera = Camera.LookAt(new Vector(0, 3, 6), new Vector(0, 1, 0), new Vector(0, 1, 0), 30);
         DefaultSampler sampler = DefaultSampler.NewSampler(64, 6);
         Renderer renderer = Renderer.NewRenderer(scene, camera, sampler, WIDTH, HEIGHT);
+        renderer.SetRenderMode(Mode);
         renderer.FireflySamples = 128;
         renderer.IterativeRender("materialspheres.png", 500, renderedImage, renderPanel);
     }
@@ -82,6 +87,7 @@ public class Example {
         var camera = Camera.LookAt(new Vector(8, 8, 0), new Vector(1, 0, 0), new Vector(0, 1, 0), 45);
         var sampler = DefaultSampler.NewSampler(4, 4);
         Renderer renderer = Renderer.NewRenderer(scene, camera, sampler, WIDTH, HEIGHT);
+        renderer.SetRenderMode(Mode);
         renderer.FireflySamples = 128;
         renderer.IterativeRender("ellipsoid.png", 50, renderedImage, renderPanel);
     }
@@ -103,6 +109,7 @@ public class Example {
         var sampler = DefaultSampler.NewSampler(4, 8);
         sampler.specularMode = SpecularMode.SpecularModeFirst;
         Renderer renderer = Renderer.NewRenderer(scene, camera, sampler, WIDTH, HEIGHT);
+        renderer.SetRenderMode(Mode);
         renderer.AdaptiveSamples = 32;
         renderer.FireflySamples = 256;
         renderer.IterativeRender("example1.png", 1000, renderedImage, renderPanel);
@@ -126,6 +133,7 @@ public class Example {
         var camera = Camera.LookAt(new Vector(0, 4, -8), new Vector(0, 0, -2), new Vector(0, 1, 0), 45);
         var sampler = DefaultSampler.NewSampler(32, 4);
         Renderer renderer = Renderer.NewRenderer(scene, camera, sampler, WIDTH, HEIGHT);
+        renderer.SetRenderMode(Mode);
         renderer.IterativeRender("example2.png", 100, renderedImage, renderPanel);
     }
 
@@ -150,6 +158,7 @@ public class Example {
         var camera = Camera.LookAt(new Vector(20, 10, 0), new Vector(8, 0, 0), new Vector(0, 1, 0), 45);
         var sampler = DefaultSampler.NewSampler(8, 8);
         var renderer = Renderer.NewRenderer(scene, camera, sampler, WIDTH, HEIGHT);
+        renderer.SetRenderMode(Mode);
         renderer.IterativeRender("example3.png", 1000, renderedImage, renderPanel);
     }
 
@@ -167,6 +176,7 @@ public class Example {
         Camera camera = Camera.LookAt(new Vector(3, 3, 3), new Vector(0, 0, 0.5), new Vector(0, 0, 1), 50);
         DefaultSampler sampler = DefaultSampler.NewSampler(4, 4);
         Renderer renderer = Renderer.NewRenderer(scene, camera, sampler, WIDTH, HEIGHT);
+        renderer.SetRenderMode(Mode);
         renderer.AdaptiveSamples = 32;
         renderer.FireflySamples = 16;
         renderer.IterativeRender("simplesphere.png", 1000, renderedImage, renderPanel);
@@ -202,6 +212,7 @@ public class Example {
         // render the scene with progressive refinement
         var sampler = DefaultSampler.NewSampler(16, 4);
         var renderer = Renderer.NewRenderer(scene, camera, sampler, WIDTH, HEIGHT);
+        renderer.SetRenderMode(Mode);
         renderer.AdaptiveSamples = 128;
         renderer.FireflySamples = 32;
         renderer.IterativeRender("simplecylinder.png", 100, renderedImage, renderPanel);
@@ -239,6 +250,7 @@ public class Example {
                 35);
         DefaultSampler sampler = DefaultSampler.NewSampler(4, 4);
         Renderer renderer = Renderer.NewRenderer(scene, camera, sampler, WIDTH, HEIGHT);
+        renderer.SetRenderMode(Mode);
         renderer.IterativeRender("qbert.png", 1000, renderedImage, renderPanel);
     }
 
@@ -288,7 +300,9 @@ public class Example {
         var camera = Camera.LookAt(new Vector(0, -1500, 200), new Vector(0, -100, 0), new Vector(0, 0, 1), 20);
         camera.SetFocus(new Vector(0, 20000, 0), 1);
         var sampler = DefaultSampler.NewSampler(4, 4);
+        sampler.SetLightMode(LightMode.LightModeTree);
         var renderer = Renderer.NewRenderer(scene, camera, sampler, WIDTH, HEIGHT);
+        renderer.SetRenderMode(Mode);
         renderer.IterativeRender("runway.png", 1000, renderedImage, renderPanel);
     }
 
@@ -317,6 +331,7 @@ public class Example {
         var camera = Camera.LookAt(new Vector(1, 0, 30), new Vector(0, 0, 0), new Vector(0, 0, 1), 35);
         var sampler = DefaultSampler.NewSampler(4, 4);
         var renderer = Renderer.NewRenderer(scene, camera, sampler, WIDTH, HEIGHT);
+        renderer.SetRenderMode(Mode);
         renderer.FireflySamples = 128;
         renderer.IterativeRender("maze.png", 1000, renderedImage, renderPanel);
 
@@ -344,6 +359,7 @@ public class Example {
         var camera = Camera.LookAt(new Vector(4, 1, 0), new Vector(0, 0.9, 0), new Vector(0, 1, 0), 40);
         var sampler = DefaultSampler.NewSampler(16, 16);
         var renderer = Renderer.NewRenderer(scene, camera, sampler, WIDTH, HEIGHT);
+        renderer.SetRenderMode(Mode);
         renderer.IterativeRender("gopher.png", 1000, renderedImage, renderPanel);
     }
 
@@ -366,6 +382,7 @@ public class Example {
         var sampler = DefaultSampler.NewSampler(16, 8);
         sampler.SetSpecularMode(SpecularMode.SpecularModeAll);
         var renderer = Renderer.NewRenderer(scene, camera, sampler, WIDTH, HEIGHT);
+        renderer.SetRenderMode(Mode);
         renderer.IterativeRender("refraction.png", 1000, renderedImage, renderPanel);
     }
 
@@ -384,6 +401,7 @@ public class Example {
         var camera = Camera.LookAt(new Vector(0, 1.5F, 2), new Vector(0, 0.5F, 0), new Vector(0, 1, 0), 35);
         var sampler = DefaultSampler.NewSampler(4, 4);
         var renderer = Renderer.NewRenderer(scene, camera, sampler, WIDTH, HEIGHT);
+        renderer.SetRenderMode(Mode);
         renderer.IterativeRender("love.png", 1000, renderedImage, renderPanel);
     }
 
@@ -401,6 +419,7 @@ public class Example {
         var camera = Camera.LookAt(new Vector(1.6F, -3, 2), new Vector(-0.25F, 0.5F, 0.5F), new Vector(0, 0, 1), 50);
         var sampler = DefaultSampler.NewSampler(4, 4);
         var renderer = Renderer.NewRenderer(scene, camera, sampler, WIDTH, HEIGHT);
+        renderer.SetRenderMode(Mode);
         renderer.FireflySamples = 128;
         renderer.IterativeRender("hits.png", 1000, renderedImage, renderPanel);
     }
@@ -455,6 +474,7 @@ public class Example {
         var camera = Camera.LookAt(new Vector(-23, 13, 20), new Vector(0, 0, 0), new Vector(0, 0, 1), 45);
         var sampler = DefaultSampler.NewSampler(4, 4);
         var renderer = Renderer.NewRenderer(scene, camera, sampler, WIDTH, HEIGHT);
+        renderer.SetRenderMode(Mode);
         renderer.FireflySamples = 64;
         renderer.IterativeRender("toybrick.png", 1000, renderedImage, renderPanel);
     }
@@ -31,6 +31,16 @@ public class Hit {
     public double T;
     public HitInfo HitInfo;
 
+    // set for hits on a TransformedShape, the hit and ray in the instance's
+    // space so that shading can be resolved lazily
+    TransformedShape Instance;
+    Hit Local;
+    Ray LocalRay;
+
+    // set for hits on a packed mesh, the triangle is found by its index there
+    MeshBVH Triangles;
+    int Index;
+
     public static Hit NoHit = new Hit(null, INF, null);
 
     Hit(IShape shape, double t, HitInfo hinfo) {
@@ -45,6 +55,14 @@ public class Hit {
             return HitInfo;
         }
 
+        if (Instance != null) {
+            return Instance.Info(this);
+        }
+
+        if (Triangles != null) {
+            return Triangles.Info(this, r);
+        }
+
         var shape = Shape;
         var position = r.Position(T);
         var normal = shape.NormalAt(position);
@@ -30,4 +30,10 @@ interface IShape {
     Vector UV(Vector uv);
     Vector NormalAt(Vector normal);
     Material MaterialAt(Vector v);
+
+    // true if the ray hits anything closer than maxT, shapes with a cheaper
+    // any-hit test than a full intersection override this
+    default boolean Occluded(Ray ray, double maxT) {
+        return Intersect(ray).T < maxT;
+    }
 }
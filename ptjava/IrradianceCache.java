@@ -0,0 +1,270 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2023 akava.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package ptjava;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// World space irradiance cache (Ward, Rubinstein and Clear) with the
+// rotational and translational gradients of Ward and Heckbert. A record is
+// gathered with a stratified cosine weighted hemisphere of paths and reused
+// by every diffuse hit within Accuracy * R of it, extrapolated along the
+// gradients. Irradiance is kept divided by pi, the same scale as the
+// indirect estimate it stands in for.
+//
+// Records live in a hash grid with one level per power of two of cell size,
+// each record is filed under the at most 8 cells its influence overlaps on
+// the level whose cells are at least its diameter, so a lookup reads one
+// cell per level. Cells are lock free queues in a concurrent map, threads
+// add records while others read them and two threads gathering the same
+// spot only cost a duplicate record.
+class IrradianceCache {
+
+    double Accuracy;
+    double MinSpacing;
+    double MaxSpacing;
+    // a record gathers Rings * Sectors paths, about pi times as many sectors as rings
+    int Rings;
+    int Sectors;
+    AtomicInteger Records;
+
+    ConcurrentHashMap<Long, ConcurrentLinkedQueue<Record>> cells;
+    // bit l set once a record is filed on level l
+    AtomicInteger levels;
+
+    IrradianceCache() {
+    }
+
+    static IrradianceCache NewIrradianceCache(double accuracy, double minSpacing, double maxSpacing) {
+        IrradianceCache c = new IrradianceCache();
+        c.Accuracy = accuracy;
+        c.MinSpacing = minSpacing;
+        c.MaxSpacing = maxSpacing;
+        c.Rings = 8;
+        c.Sectors = 25;
+        c.Records = new AtomicInteger();
+        c.cells = new ConcurrentHashMap<>();
+        c.levels = new AtomicInteger();
+        return c;
+    }
+
+    // forget the records, for when the scene changes
+    void Clear() {
+        cells.clear();
+        levels.set(0);
+        Records.set(0);
+    }
+
+    // irradiance over pi at a diffuse hit, interpolated or gathered by sampler
+    Colour Lookup(DefaultSampler sampler, Scene scene, Hit.HitInfo info, int depth, SampleStream stream) {
+        double[] e = new double[3];
+        if (interpolate(info.Position, info.Normal, e)) {
+            return new Colour(e[0], e[1], e[2]);
+        }
+        Record r = gather(sampler, scene, info.Position, info.Normal, depth, stream);
+        insert(r);
+        return new Colour(r.E[0], r.E[1], r.E[2]);
+    }
+
+    boolean interpolate(Vector p, Vector n, double[] e) {
+        int mask = levels.get();
+        double sum = 0;
+        for (int level = 0; mask != 0; level++, mask >>>= 1) {
+            if ((mask & 1) == 0) {
+                continue;
+            }
+            double size = cellSize(level);
+            ConcurrentLinkedQueue<Record> cell = cells.get(key(level,
+                    (long) Math.floor(p.getX() / size), (long) Math.floor(p.getY() / size), (long) Math.floor(p.getZ() / size)));
+            if (cell == null) {
+                continue;
+            }
+            for (Record r : cell) {
+                Vector d = p.Sub(r.Position);
+                double error = d.Length() / r.R + Math.sqrt(Math.max(0, 1 - n.Dot(r.Normal)));
+                if (error >= Accuracy) {
+                    continue;
+                }
+                // a record in front of the point sees light the point may not
+                if (d.Dot(n.Add(r.Normal)) < -0.02 * r.R) {
+                    continue;
+                }
+                // falls to zero at the edge of the record's reach so seams stay smooth
+                double w = 1 / Math.max(error, 1e-9) - 1 / Accuracy;
+                Vector rotation = r.Normal.Cross(n);
+                for (int c = 0; c < 3; c++) {
+                    e[c] += w * (r.E[c] + rotation.Dot(r.Rotation[c]) + d.Dot(r.Translation[c]));
+                }
+                sum += w;
+            }
+        }
+        if (sum <= 0) {
+            return false;
+        }
+        for (int c = 0; c < 3; c++) {
+            e[c] = Math.max(0, e[c] / sum);
+        }
+        return true;
+    }
+
+    // gathers a record at p, the paths go through sampler from depth + 1 on
+    Record gather(DefaultSampler sampler, Scene scene, Vector p, Vector n, int depth, SampleStream stream) {
+        int m = Rings;
+        int k = Sectors;
+        Vector u = n.Cross(n.MinAxis()).Normalize();
+        Vector v = n.Cross(u);
+        double[] radiance = new double[m * k * 3];
+        double[] distance = new double[m * k];
+        double inverse = 0;
+
+        for (int j = 0; j < m; j++) {
+            for (int i = 0; i < k; i++) {
+                double s = (j + stream.Random.nextDouble()) / m;
+                double phi = 2 * Math.PI * (i + stream.Random.nextDouble()) / k;
+                double sin = Math.sqrt(s);
+                double cos = Math.sqrt(1 - s);
+                Vector d = u.MulScalar(Math.cos(phi) * sin).Add(v.MulScalar(Math.sin(phi) * sin)).Add(n.MulScalar(cos));
+                Ray ray = new Ray(p, d);
+                Hit hit = scene.Intersect(ray);
+
+                SampleStream path = new SampleStream(stream.Generator, stream.Pixel, stream.Random.nextInt(Integer.MAX_VALUE));
+                path.Gathering = true;
+                path.Primary = hit;
+                Colour l = sampler.sample(scene, ray, cos / Math.PI, 1, depth + 1, path);
+
+                int a = j * k + i;
+                radiance[a * 3] = l.r;
+                radiance[a * 3 + 1] = l.g;
+                radiance[a * 3 + 2] = l.b;
+                distance[a] = hit.T;
+                inverse += 1 / hit.T;
+            }
+        }
+
+        Record r = new Record();
+        r.Position = p;
+        r.Normal = n;
+        r.E = new double[3];
+        for (int a = 0; a < m * k; a++) {
+            for (int c = 0; c < 3; c++) {
+                r.E[c] += radiance[a * 3 + c] / (m * k);
+            }
+        }
+
+        // rotational gradient: how the cosine weighting shifts as the normal turns
+        r.Rotation = new Vector[3];
+        r.Translation = new Vector[3];
+        double[] rot = new double[9];
+        double[] trans = new double[9];
+        for (int i = 0; i < k; i++) {
+            double centre = 2 * Math.PI * (i + 0.5) / k;
+            double edge = 2 * Math.PI * i / k;
+            Vector uc = u.MulScalar(Math.cos(centre)).Add(v.MulScalar(Math.sin(centre)));
+            Vector vc = u.MulScalar(-Math.sin(centre)).Add(v.MulScalar(Math.cos(centre)));
+            Vector ve = u.MulScalar(-Math.sin(edge)).Add(v.MulScalar(Math.cos(edge)));
+            int prev = (i + k - 1) % k;
+            for (int c = 0; c < 3; c++) {
+                double tangent = 0, ring = 0, sector = 0;
+                for (int j = 0; j < m; j++) {
+                    double s = (j + 0.5) / m;
+                    tangent -= Math.sqrt(s / (1 - s)) * radiance[(j * k + i) * 3 + c];
+                    // translational gradient, change across the ring and sector boundaries
+                    if (j > 0) {
+                        double sb = j / (double) m;
+                        double dist = Math.min(distance[j * k + i], distance[(j - 1) * k + i]);
+                        ring += Math.sqrt(sb) * (1 - sb) / dist
+                                * (radiance[(j * k + i) * 3 + c] - radiance[((j - 1) * k + i) * 3 + c]);
+                    }
+                    double dist = Math.min(distance[j * k + i], distance[j * k + prev]);
+                    sector += (Math.sqrt((j + 1) / (double) m) - Math.sqrt(j / (double) m)) / dist
+                            * (radiance[(j * k + i) * 3 + c] - radiance[(j * k + prev) * 3 + c]);
+                }
+                addScaled(rot, c, vc, tangent / (m * k));
+                addScaled(trans, c, uc, ring * 2 / k);
+                addScaled(trans, c, ve, sector / Math.PI);
+            }
+        }
+
+        // records sit no further apart than the harmonic mean distance to the
+        // surroundings, or than the gradient says the irradiance stays put
+        double radius = m * k / inverse;
+        for (int c = 0; c < 3; c++) {
+            r.Rotation[c] = new Vector(rot[c * 3], rot[c * 3 + 1], rot[c * 3 + 2]);
+            r.Translation[c] = new Vector(trans[c * 3], trans[c * 3 + 1], trans[c * 3 + 2]);
+            double g = r.Translation[c].Length();
+            if (g > 0 && r.E[c] > 0) {
+                radius = Math.min(radius, r.E[c] / g);
+            }
+        }
+        r.R = Math.min(Math.max(radius, MinSpacing), MaxSpacing);
+        return r;
+    }
+
+    static void addScaled(double[] g, int c, Vector d, double s) {
+        g[c * 3] += d.getX() * s;
+        g[c * 3 + 1] += d.getY() * s;
+        g[c * 3 + 2] += d.getZ() * s;
+    }
+
+    void insert(Record r) {
+        double reach = Accuracy * r.R;
+        int level = 0;
+        while (cellSize(level) < 2 * reach && level < 30) {
+            level++;
+        }
+        double size = cellSize(level);
+        Vector p = r.Position;
+        for (long x = (long) Math.floor((p.getX() - reach) / size); x <= (long) Math.floor((p.getX() + reach) / size); x++) {
+            for (long y = (long) Math.floor((p.getY() - reach) / size); y <= (long) Math.floor((p.getY() + reach) / size); y++) {
+                for (long z = (long) Math.floor((p.getZ() - reach) / size); z <= (long) Math.floor((p.getZ() + reach) / size); z++) {
+                    cells.computeIfAbsent(key(level, x, y, z), q -> new ConcurrentLinkedQueue<>()).add(r);
+                }
+            }
+        }
+        final int bit = 1 << level;
+        levels.getAndUpdate(l -> l | bit);
+        Records.incrementAndGet();
+    }
+
+    double cellSize(int level) {
+        return 2 * Accuracy * MinSpacing * (1L << level);
+    }
+
+    // far apart cells may share a key, the distance test sorts them out
+    static long key(int level, long x, long y, long z) {
+        return ((long) level << 57) | ((x & 0x7FFFF) << 38) | ((y & 0x7FFFF) << 19) | (z & 0x7FFFF);
+    }
+
+    static class Record {
+        Vector Position;
+        Vector Normal;
+        // harmonic mean distance, the record's reach is Accuracy * R
+        double R;
+        double[] E;
+        Vector[] Rotation;
+        Vector[] Translation;
+    }
+}
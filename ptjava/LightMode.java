@@ -25,5 +25,7 @@ package ptjava;
 
 public enum LightMode {
     LightModeRandom,
-    LightModeAll
+    LightModeAll,
+    LightModeTree,
+    LightModePower
 }
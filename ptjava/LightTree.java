@@ -0,0 +1,355 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2023 akava.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package ptjava;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+// Binary hierarchy over the scene's lights for picking one in proportion to
+// what it is likely to contribute at a shading point. Every node keeps the
+// bounds, the emitted power and a cone around the surface normals of the
+// lights below it, sampling walks down from the root choosing a child by
+// power over squared distance times the largest cosine the cone allows
+// towards the point, and walking up from a light's leaf gives the pdf of that
+// choice. Spheres and boxes emit in every direction and get a full cone;
+// quads and triangles emit from both faces here, so their cones bound the
+// normal line rather than one side of it.
+class LightTree {
+
+    IShape[] Lights;
+    // position of every light in Lights, for identifying the light a ray hit
+    Map<IShape, Integer> Index = new IdentityHashMap<>();
+
+    // nodes in depth-first order, six doubles of bounds and the power each; the
+    // left child of an inner node directly follows it, NodeData holds the right
+    // child index, or -(light + 1) for a leaf
+    double[] NodeBounds;
+    double[] NodePower;
+    // normal cone of every node, three doubles of axis and the half angle;
+    // a half angle of pi means the node can light every direction
+    double[] NodeAxis;
+    double[] NodeSpread;
+    // cosine and sine of the half angles, for importance
+    double[] NodeCos;
+    double[] NodeSin;
+    int[] NodeData;
+    int[] Parent;
+    // leaf node of every light
+    int[] Leaf;
+    int NodeCount;
+
+    // per-light bounds and centroids, only kept while building
+    private double[] bmin;
+    private double[] bmax;
+    private double[] power;
+    private double[] axis;
+    private double[] spread;
+    private Integer[] order;
+
+    LightTree(IShape[] lights) {
+        this.Lights = lights;
+        int n = lights.length;
+        bmin = new double[n * 3];
+        bmax = new double[n * 3];
+        power = new double[n];
+        axis = new double[n * 3];
+        spread = new double[n];
+        order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            Index.put(lights[i], i);
+            if (lights[i] instanceof Mesh) {
+                // hits on a packed mesh report the mesh, the others the triangle
+                Mesh mesh = (Mesh) lights[i];
+                mesh.buildEmitters();
+                for (Triangle t : mesh.emitters) {
+                    Index.put(t, i);
+                }
+            } else if (lights[i] instanceof Quad) {
+                Index.put(((Quad) lights[i]).t1, i);
+                Index.put(((Quad) lights[i]).t2, i);
+            }
+            Box box = lights[i].BoundingBox();
+            bmin[i * 3] = box.Min.getX();
+            bmin[i * 3 + 1] = box.Min.getY();
+            bmin[i * 3 + 2] = box.Min.getZ();
+            bmax[i * 3] = box.Max.getX();
+            bmax[i * 3 + 1] = box.Max.getY();
+            bmax[i * 3 + 2] = box.Max.getZ();
+            power[i] = Scene.lightPower(lights[i]);
+            cone(lights[i], i);
+            order[i] = i;
+        }
+
+        int nodes = Math.max(1, 2 * n - 1);
+        NodeBounds = new double[nodes * 6];
+        NodePower = new double[nodes];
+        NodeAxis = new double[nodes * 3];
+        NodeSpread = new double[nodes];
+        NodeData = new int[nodes];
+        Parent = new int[nodes];
+        Leaf = new int[n];
+        if (n > 0) {
+            build(0, n, -1);
+        }
+        NodeCos = new double[nodes];
+        NodeSin = new double[nodes];
+        for (int i = 0; i < nodes; i++) {
+            NodeCos[i] = Math.cos(NodeSpread[i]);
+            NodeSin[i] = Math.sin(NodeSpread[i]);
+        }
+
+        bmin = bmax = power = axis = spread = null;
+        order = null;
+    }
+
+    // normal cone of a single light into axis and spread at index i
+    private void cone(IShape light, int i) {
+        spread[i] = Math.PI;
+        axis[i * 3 + 2] = 1;
+        Triangle[] faces;
+        if (light instanceof Triangle) {
+            faces = new Triangle[]{(Triangle) light};
+        } else if (light instanceof Quad) {
+            faces = new Triangle[]{((Quad) light).t1};
+        } else if (light instanceof Mesh) {
+            ((Mesh) light).buildEmitters();
+            faces = ((Mesh) light).emitters;
+        } else {
+            return;
+        }
+        // normals are lines, each is flipped towards the first before averaging
+        Vector[] normals = new Vector[faces.length];
+        Vector sum = new Vector();
+        for (int k = 0; k < faces.length; k++) {
+            Triangle t = faces[k];
+            Vector d = t.V2.Sub(t.V1).Cross(t.V3.Sub(t.V1)).Normalize();
+            if (k > 0 && d.Dot(normals[0]) < 0) {
+                d = d.Negate();
+            }
+            normals[k] = d;
+            sum = sum.Add(d);
+        }
+        if (sum.Length() < Util.EPS) {
+            return;
+        }
+        Vector a = sum.Normalize();
+        double angle = 0;
+        for (Vector d : normals) {
+            angle = Math.max(angle, Math.acos(Math.min(Math.max(Math.abs(d.Dot(a)), -1), 1)));
+        }
+        axis[i * 3] = a.getX();
+        axis[i * 3 + 1] = a.getY();
+        axis[i * 3 + 2] = a.getZ();
+        spread[i] = angle;
+    }
+
+    // smallest cone holding the cones of nodes l and r, either of which may be
+    // flipped since the cones bound normal lines
+    private void merge(int node, int l, int r) {
+        double[] x = NodeAxis;
+        double ta = NodeSpread[l], tb = NodeSpread[r];
+        if (ta >= Math.PI || tb >= Math.PI) {
+            NodeSpread[node] = Math.PI;
+            return;
+        }
+        double bx = x[r * 3], by = x[r * 3 + 1], bz = x[r * 3 + 2];
+        double c = x[l * 3] * bx + x[l * 3 + 1] * by + x[l * 3 + 2] * bz;
+        if (c < 0) {
+            bx = -bx;
+            by = -by;
+            bz = -bz;
+            c = -c;
+        }
+        double between = Math.acos(Math.min(c, 1));
+        if (ta >= between + tb) {
+            copyCone(node, l);
+            return;
+        }
+        if (tb >= between + ta) {
+            copyCone(node, r);
+            NodeAxis[node * 3] = bx;
+            NodeAxis[node * 3 + 1] = by;
+            NodeAxis[node * 3 + 2] = bz;
+            return;
+        }
+        double t = (ta + between + tb) / 2;
+        if (t >= Math.PI / 2) {
+            // a line cone wider than a hemisphere holds every line
+            NodeSpread[node] = Math.PI;
+            return;
+        }
+        // rotate the axis of l towards that of r by the angle the union needs
+        double rotate = t - ta;
+        double ax = x[l * 3], ay = x[l * 3 + 1], az = x[l * 3 + 2];
+        double px = bx - c * ax, py = by - c * ay, pz = bz - c * az;
+        double pl = Math.sqrt(px * px + py * py + pz * pz);
+        if (pl < Util.EPS) {
+            copyCone(node, l);
+            NodeSpread[node] = t;
+            return;
+        }
+        double cr = Math.cos(rotate), sr = Math.sin(rotate) / pl;
+        double nx = ax * cr + px * sr, ny = ay * cr + py * sr, nz = az * cr + pz * sr;
+        double len = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        NodeAxis[node * 3] = nx / len;
+        NodeAxis[node * 3 + 1] = ny / len;
+        NodeAxis[node * 3 + 2] = nz / len;
+        NodeSpread[node] = t;
+    }
+
+    private void copyCone(int node, int from) {
+        System.arraycopy(NodeAxis, from * 3, NodeAxis, node * 3, 3);
+        NodeSpread[node] = NodeSpread[from];
+    }
+
+    static LightTree NewLightTree(IShape[] lights) {
+        return new LightTree(lights);
+    }
+
+    private int build(int start, int end, int parent) {
+        int node = NodeCount++;
+        Parent[node] = parent;
+        double[] b = NodeBounds;
+        int o = node * 6;
+        b[o] = b[o + 1] = b[o + 2] = Double.POSITIVE_INFINITY;
+        b[o + 3] = b[o + 4] = b[o + 5] = Double.NEGATIVE_INFINITY;
+        double p = 0;
+        for (int k = start; k < end; k++) {
+            int i = order[k];
+            for (int a = 0; a < 3; a++) {
+                b[o + a] = Math.min(b[o + a], bmin[i * 3 + a]);
+                b[o + 3 + a] = Math.max(b[o + 3 + a], bmax[i * 3 + a]);
+            }
+            p += power[i];
+        }
+        NodePower[node] = p;
+
+        if (end - start == 1) {
+            int i = order[start];
+            NodeData[node] = -(i + 1);
+            Leaf[i] = node;
+            System.arraycopy(axis, i * 3, NodeAxis, node * 3, 3);
+            NodeSpread[node] = spread[i];
+            return node;
+        }
+
+        // median split of the centroids along the longest axis of the bounds
+        int axis = 0;
+        for (int a = 1; a < 3; a++) {
+            if (b[o + 3 + a] - b[o + a] > b[o + 3 + axis] - b[o + axis]) {
+                axis = a;
+            }
+        }
+        final int ax = axis;
+        Arrays.sort(order, start, end, (i, j) -> Double.compare(bmin[i * 3 + ax] + bmax[i * 3 + ax], bmin[j * 3 + ax] + bmax[j * 3 + ax]));
+        int mid = (start + end) / 2;
+        build(start, mid, node);
+        NodeData[node] = build(mid, end, node);
+        merge(node, node + 1, NodeData[node]);
+        return node;
+    }
+
+    // estimated contribution of a node at x, y, z: power over the squared
+    // distance to its centre, never closer than the node's own radius, times
+    // the cosine between the point and the normal cone once the cone and the
+    // angle the bounds subtend are taken off, zero when that reaches 90 degrees
+    double importance(int node, double x, double y, double z) {
+        int o = node * 6;
+        double[] b = NodeBounds;
+        double dx = (b[o] + b[o + 3]) / 2 - x;
+        double dy = (b[o + 1] + b[o + 4]) / 2 - y;
+        double dz = (b[o + 2] + b[o + 5]) / 2 - z;
+        double ex = b[o + 3] - b[o];
+        double ey = b[o + 4] - b[o + 1];
+        double ez = b[o + 5] - b[o + 2];
+        double r2 = (ex * ex + ey * ey + ez * ez) / 4;
+        double l2 = dx * dx + dy * dy + dz * dz;
+        double d2 = Math.max(l2, r2);
+        double p = NodePower[node] / Math.max(d2, Util.EPS);
+        if (NodeSpread[node] >= Math.PI || l2 <= r2) {
+            return p;
+        }
+        // the angles are subtracted through their cosines and sines
+        int a = node * 3;
+        double cw = Math.min(Math.abs(NodeAxis[a] * dx + NodeAxis[a + 1] * dy + NodeAxis[a + 2] * dz) / Math.sqrt(l2), 1);
+        double sw = Math.sqrt(1 - cw * cw);
+        double co = NodeCos[node], so = NodeSin[node];
+        if (cw >= co) {
+            return p;
+        }
+        double cx = cw * co + sw * so;
+        double sx = sw * co - cw * so;
+        double sb = Math.sqrt(r2 / l2);
+        double cb = Math.sqrt(1 - sb * sb);
+        if (cx >= cb) {
+            return p;
+        }
+        double c = cx * cb + sx * sb;
+        return c > 0 ? p * c : 0;
+    }
+
+    // chance of going to the left child of an inner node
+    double leftProbability(int node, double x, double y, double z) {
+        double l = importance(node + 1, x, y, z);
+        double r = importance(NodeData[node], x, y, z);
+        if (l + r <= 0) {
+            return 0.5;
+        }
+        return l / (l + r);
+    }
+
+    // index into Lights of the light picked at point p by u in [0, 1)
+    int Sample(Vector p, double u) {
+        double x = p.getX(), y = p.getY(), z = p.getZ();
+        int node = 0;
+        while (NodeData[node] >= 0) {
+            double pl = leftProbability(node, x, y, z);
+            if (u < pl) {
+                u /= pl;
+                node = node + 1;
+            } else {
+                u = (u - pl) / (1 - pl);
+                node = NodeData[node];
+            }
+            u = Math.min(u, 1 - 1e-12);
+        }
+        return -NodeData[node] - 1;
+    }
+
+    // probability of Sample picking light index at point p
+    double Pdf(Vector p, int index) {
+        double x = p.getX(), y = p.getY(), z = p.getZ();
+        double pdf = 1;
+        int node = Leaf[index];
+        while (Parent[node] >= 0) {
+            int parent = Parent[node];
+            double pl = leftProbability(parent, x, y, z);
+            pdf *= node == parent + 1 ? pl : 1 - pl;
+            node = parent;
+        }
+        return pdf;
+    }
+}
@@ -93,9 +93,11 @@ public class Material {
     }
 
     static Material MaterialAt(IShape shape, Vector point) {
-        Material material = shape.MaterialAt(point);
-        Vector uv = shape.UV(point);
+        return MaterialAt(shape.MaterialAt(point), shape.UV(point));
+    }
 
+    // material with its textures sampled at uv
+    static Material MaterialAt(Material material, Vector uv) {
         if (material.Texture != null) {
             material.Color = material.Texture.Sample(uv.getX(), uv.getY());
         }
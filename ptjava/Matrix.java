@@ -199,11 +199,8 @@ public class Matrix {
         Vector yb = u.MulScalar(box.Max.getY());
         Vector za = b.MulScalar(box.Min.getZ());
         Vector zb = b.MulScalar(box.Max.getZ());
-        xa = xa.Min(xb);
-        ya = ya.Min(yb);
-        za = za.Min(zb);
-        Vector min = xa.Add(ya).Add(za).Add(t);
-        Vector max = xb.Add(yb).Add(zb).Add(t);
+        Vector max = xa.Max(xb).Add(ya.Max(yb)).Add(za.Max(zb)).Add(t);
+        Vector min = xa.Min(xb).Add(ya.Min(yb)).Add(za.Min(zb)).Add(t);
         return new Box(min, max);
     }
 
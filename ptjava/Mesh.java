@@ -30,20 +30,28 @@ import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 
-class Mesh implements IShape {
+class Mesh implements IShape, Emitter {
 
+    // null while a MeshBVH holds them packed, Triangles unpacks them again
     Triangle[] triangles;
     Box box;
-    Tree tree;
+    Accelerator tree;
+    AccelMode accelMode = AccelMode.AccelModeBVH;
     Colour color;
+    // emissive triangles, their cumulative areas and the material of the
+    // first of them, built with the mesh and again after it changes
+    Triangle[] emitters;
+    double[] emitterCdf;
+    Material emission;
 
     Mesh() {
     }
 
-    Mesh(Triangle[] triangles, Box box, Tree tree) {
+    Mesh(Triangle[] triangles, Box box, Accelerator tree) {
         this.triangles = triangles;
         this.box = box;
         this.tree = tree;
+        buildEmitters();
         System.out.println("Mesh initialized with " + triangles.length + " triangles.");
 
     }
@@ -54,38 +62,70 @@ class Mesh implements IShape {
                                .toArray(Triangle[]::new);
         this.box = null;
         this.tree = null;
+        buildEmitters();
     }
 
     public static Mesh NewMesh(Triangle[] triangles) {
         return new Mesh(triangles, null, null);
     }
 
+    // the triangles to read or change, unpacked from the compiled tree when it
+    // holds the only copy; changing them needs dirty to rebuild the tree
+    Triangle[] Triangles() {
+        if (triangles == null) {
+            triangles = ((MeshBVH) tree).Triangles();
+        }
+        return triangles;
+    }
+
     void dirty() {
+        triangles = Triangles();
         box = null;
         tree = null;
+        emitters = null;
     }
 
     Mesh Copy() {
+        Triangle[] triangles = Triangles();
         Triangle[] trianglesCopy = new Triangle[triangles.length];
         System.arraycopy(triangles, 0, trianglesCopy, 0, triangles.length);
         return NewMesh(trianglesCopy);
     }
 
     @Override
-    public void Compile() {
+    public synchronized void Compile() {
         if (tree == null) {
-            IShape[] shapes = new IShape[triangles.length];
-            System.arraycopy(triangles, 0, shapes, 0, triangles.length);
-            tree = Tree.NewTree(shapes);
-            System.out.println("Tree compiled with " + shapes.length + " shapes.");
+            if (accelMode == AccelMode.AccelModeBVH) {
+                BoundingBox();
+                tree = MeshBVH.NewMeshBVH(this, triangles);
+                // the packed arrays are the mesh from here on, the emissive
+                // triangles are rebuilt from them so that light samples lie
+                // on the surface rays hit
+                triangles = null;
+                emitters = null;
+                buildEmitters();
+            } else {
+                IShape[] shapes = new IShape[triangles.length];
+                System.arraycopy(triangles, 0, shapes, 0, triangles.length);
+                tree = Accelerator.NewAccelerator(shapes, accelMode);
+            }
+            System.out.println(tree.Stats());
         }
     }
 
+    public void SetAccelMode(AccelMode am) {
+        this.triangles = Triangles();
+        this.accelMode = am;
+        this.tree = null;
+    }
+
     void Add(Mesh b) {
-        Triangle[] all = new Triangle[triangles.length + b.triangles.length];
+        Triangle[] triangles = Triangles();
+        Triangle[] other = b.Triangles();
+        Triangle[] all = new Triangle[triangles.length + other.length];
         System.arraycopy(triangles, 0, all, 0, triangles.length);
-        System.arraycopy(b.triangles, 0, all, triangles.length, b.triangles.length);
-        triangles = all;
+        System.arraycopy(other, 0, all, triangles.length, other.length);
+        this.triangles = all;
         dirty();
     }
 
@@ -95,12 +135,18 @@ class Mesh implements IShape {
     }
 
     @Override
-    public Box BoundingBox() {
-        if (triangles.length == 0) {
-            return new Box(new Vector(), new Vector());
-        }
+    public boolean Occluded(Ray r, double maxT) {
+        return tree.Occluded(r, maxT);
+    }
 
+    @Override
+    public Box BoundingBox() {
         if (box == null) {
+            Triangle[] triangles = Triangles();
+            if (triangles.length == 0) {
+                return new Box(new Vector(), new Vector());
+            }
+
             Vector min = triangles[0].V1;
             Vector max = triangles[0].V1;
 
@@ -118,9 +164,62 @@ class Mesh implements IShape {
         return new Vector();
     }
 
+    // the material of the first emissive triangle, so that meshes with
+    // emissive triangles are registered as lights
     @Override
     public Material MaterialAt(Vector p) {
-        return new Material();
+        if (emitters == null) {
+            buildEmitters();
+        }
+        return emission != null ? emission : new Material();
+    }
+
+    synchronized void buildEmitters() {
+        if (emitters != null) {
+            return;
+        }
+        List<Triangle> list = new ArrayList<>();
+        if (triangles != null) {
+            for (Triangle t : triangles) {
+                if (t.Material != null && t.Material.Emittance > 0) {
+                    list.add(t);
+                }
+            }
+        } else {
+            MeshBVH packed = (MeshBVH) tree;
+            for (int i = 0; i < packed.MaterialIndex.length; i++) {
+                Material m = packed.Materials[packed.MaterialIndex[i]];
+                if (m != null && m.Emittance > 0) {
+                    list.add(packed.Triangle(i));
+                }
+            }
+        }
+        double[] cdf = new double[list.size() + 1];
+        for (int i = 0; i < list.size(); i++) {
+            cdf[i + 1] = cdf[i] + list.get(i).Area();
+        }
+        emitterCdf = cdf;
+        emission = list.isEmpty() ? null : list.get(0).Material;
+        emitters = list.toArray(new Triangle[0]);
+    }
+
+    @Override
+    public double Area() {
+        buildEmitters();
+        return emitterCdf[emitters.length];
+    }
+
+    // picks an emissive triangle by area with u, then reuses u within it
+    @Override
+    public SurfacePoint SampleSurface(double u, double v) {
+        buildEmitters();
+        if (emitters.length == 0) {
+            return null;
+        }
+        double x = u * emitterCdf[emitters.length];
+        int i = EnvironmentMap.find(emitterCdf, 0, emitters.length, x);
+        double a = (x - emitterCdf[i]) / (emitterCdf[i + 1] - emitterCdf[i]);
+        return emitters[i].SampleSurface(Math.min(Math.max(a, 0), 1 - 1e-12), v);
     }
 
     @Override
@@ -139,6 +238,7 @@ class Mesh implements IShape {
     }
 
     void SmoothNormalsThreshold(double radians) {
+        Triangle[] triangles = Triangles();
         double threshold = Math.cos(radians);
 
         List<Vector> NL1 = new ArrayList<>();
@@ -162,9 +262,11 @@ class Mesh implements IShape {
             t.N2 = smoothNormalsThreshold(t.N2, lookup.get(t.V2).toArray(new Vector[0]), threshold);
             t.N3 = smoothNormalsThreshold(t.N3, lookup.get(t.V3).toArray(new Vector[0]), threshold);
         }
+        dirty();
     }
 
     void SmoothNormals() {
+        Triangle[] triangles = Triangles();
         Map<Vector, Vector> lookup = new HashMap<>();
 
         for (Triangle t : triangles) {
@@ -188,6 +290,7 @@ class Mesh implements IShape {
             t.N2 = lookup.get(t.V2);
             t.N3 = lookup.get(t.V3);
         }
+        dirty();
     }
 
     void UnitCube() {
@@ -212,6 +315,7 @@ class Mesh implements IShape {
 
     void Transform(Matrix matrix) {
         // Create a copy of triangles array to update vertices and normals
+        Triangle[] triangles = Triangles();
         Triangle[] trianglesCopy = new Triangle[triangles.length];
         System.arraycopy(triangles, 0, trianglesCopy, 0, triangles.length);
 
@@ -225,14 +329,15 @@ class Mesh implements IShape {
         }
 
         // Replace triangles array with the updated copy
-        triangles = trianglesCopy;
+        this.triangles = trianglesCopy;
 
         dirty();
     }
 
     void SetMaterial(Material material) {
-        for (Triangle t : triangles) {
+        for (Triangle t : Triangles()) {
             t.Material = material;
         }
+        dirty();
     }
 }
@@ -0,0 +1,281 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2023 akava.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package ptjava;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import ptjava.Hit.HitInfo;
+
+// BVH over the triangles of a mesh that keeps the triangles only as packed
+// arrays in leaf order: the vertices as floats for testing a leaf several
+// triangles at a time, and the normals, UVs and material index that shading
+// looks up by triangle index. The Triangle objects are dropped once packed,
+// hits report the mesh with the triangle's index, and Triangle rebuilds one
+// for the rare caller that needs the object. The vertices are only stored as
+// floats, the intersection runs in doubles on the stored values, so triangles
+// sharing a vertex still meet exactly.
+class MeshBVH extends BVH {
+
+    static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_256;
+    static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_128;
+
+    // the mesh hits report as their shape
+    IShape Owner;
+    // the three vertices, padded to a whole vector
+    float[] AX, AY, AZ;
+    float[] BX, BY, BZ;
+    float[] CX, CY, CZ;
+    // nine floats of vertex normals and six of UVs per triangle
+    float[] Normals;
+    float[] UVs;
+    int[] MaterialIndex;
+    Material[] Materials;
+
+    MeshBVH(IShape owner, Triangle[] triangles) {
+        super(triangles);
+        this.Owner = owner;
+        int n = Shapes.length;
+        int size = n + SPECIES.length();
+        AX = new float[size];
+        AY = new float[size];
+        AZ = new float[size];
+        BX = new float[size];
+        BY = new float[size];
+        BZ = new float[size];
+        CX = new float[size];
+        CY = new float[size];
+        CZ = new float[size];
+        Normals = new float[n * 9];
+        UVs = new float[n * 6];
+        MaterialIndex = new int[n];
+        Map<Material, Integer> materials = new IdentityHashMap<>();
+        List<Material> list = new ArrayList<>();
+
+        for (int i = 0; i < n; i++) {
+            Triangle t = (Triangle) Shapes[i];
+            AX[i] = (float) t.V1.getX();
+            AY[i] = (float) t.V1.getY();
+            AZ[i] = (float) t.V1.getZ();
+            BX[i] = (float) t.V2.getX();
+            BY[i] = (float) t.V2.getY();
+            BZ[i] = (float) t.V2.getZ();
+            CX[i] = (float) t.V3.getX();
+            CY[i] = (float) t.V3.getY();
+            CZ[i] = (float) t.V3.getZ();
+            Vector[] normals = {t.N1, t.N2, t.N3};
+            Vector[] uvs = {t.T1, t.T2, t.T3};
+            for (int k = 0; k < 3; k++) {
+                // missing normals fall back to the face normal, as FixNormals does
+                Vector nk = normals[k] != null ? normals[k] : t.Normal();
+                Normals[i * 9 + k * 3] = (float) nk.getX();
+                Normals[i * 9 + k * 3 + 1] = (float) nk.getY();
+                Normals[i * 9 + k * 3 + 2] = (float) nk.getZ();
+                if (uvs[k] != null) {
+                    UVs[i * 6 + k * 2] = (float) uvs[k].getX();
+                    UVs[i * 6 + k * 2 + 1] = (float) uvs[k].getY();
+                }
+            }
+            Integer m = materials.get(t.Material);
+            if (m == null) {
+                m = list.size();
+                materials.put(t.Material, m);
+                list.add(t.Material);
+            }
+            MaterialIndex[i] = m;
+        }
+        Materials = list.toArray(new Material[0]);
+        Shapes = null;
+    }
+
+    static MeshBVH NewMeshBVH(IShape owner, Triangle[] triangles) {
+        System.out.println("Building BVH: " + triangles.length);
+        return new MeshBVH(owner, triangles);
+    }
+
+    @Override
+    Hit intersectLeaf(Ray r, int start, int count, Hit best) {
+        int end = start + count;
+        double t = best.T;
+        int index = -1;
+
+        for (int i = start; i < end; i += SPECIES.length()) {
+            DoubleVector d = distances(r, i, SPECIES.indexInRange(i, end));
+            double tmin = d.reduceLanes(VectorOperators.MIN);
+            if (tmin < t) {
+                t = tmin;
+                index = i + d.compare(VectorOperators.EQ, tmin).firstTrue();
+            }
+        }
+
+        if (index < 0) {
+            return best;
+        }
+        Hit hit = new Hit(Owner, t, null);
+        hit.Triangles = this;
+        hit.Index = index;
+        return hit;
+    }
+
+    @Override
+    boolean occludedLeaf(Ray r, int start, int count, double maxT) {
+        int end = start + count;
+        for (int i = start; i < end; i += SPECIES.length()) {
+            DoubleVector d = distances(r, i, SPECIES.indexInRange(i, end));
+            if (d.compare(VectorOperators.LT, maxT).anyTrue()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static DoubleVector load(float[] a, int i) {
+        return (DoubleVector) FloatVector.fromArray(FLOATS, a, i).convertShape(VectorOperators.F2D, SPECIES, 0);
+    }
+
+    // Moller-Trumbore against the triangles starting at i, lanes that miss
+    // or fall outside the leaf come back as infinity
+    DoubleVector distances(Ray r, int i, VectorMask<Double> valid) {
+        DoubleVector ax = load(AX, i);
+        DoubleVector ay = load(AY, i);
+        DoubleVector az = load(AZ, i);
+        DoubleVector e1x = load(BX, i).sub(ax);
+        DoubleVector e1y = load(BY, i).sub(ay);
+        DoubleVector e1z = load(BZ, i).sub(az);
+        DoubleVector e2x = load(CX, i).sub(ax);
+        DoubleVector e2y = load(CY, i).sub(ay);
+        DoubleVector e2z = load(CZ, i).sub(az);
+
+        // h = d x e2
+        DoubleVector hx = e2z.mul(r.DY).sub(e2y.mul(r.DZ));
+        DoubleVector hy = e2x.mul(r.DZ).sub(e2z.mul(r.DX));
+        DoubleVector hz = e2y.mul(r.DX).sub(e2x.mul(r.DY));
+        DoubleVector det = e1x.mul(hx).add(e1y.mul(hy)).add(e1z.mul(hz));
+        valid = valid.and(det.abs().compare(VectorOperators.GE, Util.EPS));
+        DoubleVector inv = DoubleVector.broadcast(SPECIES, 1).div(det);
+
+        // s = o - v0
+        DoubleVector sx = DoubleVector.broadcast(SPECIES, r.OX).sub(ax);
+        DoubleVector sy = DoubleVector.broadcast(SPECIES, r.OY).sub(ay);
+        DoubleVector sz = DoubleVector.broadcast(SPECIES, r.OZ).sub(az);
+        DoubleVector u = sx.mul(hx).add(sy.mul(hy)).add(sz.mul(hz)).mul(inv);
+        valid = valid.and(u.compare(VectorOperators.GE, 0)).and(u.compare(VectorOperators.LE, 1));
+
+        // q = s x e1
+        DoubleVector qx = sy.mul(e1z).sub(sz.mul(e1y));
+        DoubleVector qy = sz.mul(e1x).sub(sx.mul(e1z));
+        DoubleVector qz = sx.mul(e1y).sub(sy.mul(e1x));
+        DoubleVector v = qx.mul(r.DX).add(qy.mul(r.DY)).add(qz.mul(r.DZ)).mul(inv);
+        valid = valid.and(v.compare(VectorOperators.GE, 0)).and(u.add(v).compare(VectorOperators.LE, 1));
+
+        DoubleVector t = e2x.mul(qx).add(e2y.mul(qy)).add(e2z.mul(qz)).mul(inv);
+        valid = valid.and(t.compare(VectorOperators.GE, Util.EPS));
+        return DoubleVector.broadcast(SPECIES, Double.POSITIVE_INFINITY).blend(t, valid);
+    }
+
+    // shading of a hit on triangle hit.Index, the same as Hit.Info on the
+    // Triangle it was packed from
+    HitInfo Info(Hit hit, Ray r) {
+        int i = hit.Index;
+        Vector position = r.Position(hit.T);
+        Material material = Materials[MaterialIndex[i]];
+        Vector normal;
+        if (material.NormalTexture != null || material.BumpTexture != null) {
+            // texture space needs the whole triangle, rare enough to rebuild it
+            normal = Triangle(i).NormalAt(position);
+        } else {
+            double[] b = barycentric(i, position);
+            int o = i * 9;
+            normal = new Vector(b[0] * Normals[o] + b[1] * Normals[o + 3] + b[2] * Normals[o + 6],
+                    b[0] * Normals[o + 1] + b[1] * Normals[o + 4] + b[2] * Normals[o + 7],
+                    b[0] * Normals[o + 2] + b[1] * Normals[o + 5] + b[2] * Normals[o + 8]).Normalize();
+        }
+        material = Material.MaterialAt(material, UV(i, position));
+        boolean inside = false;
+        if (normal.Dot(r.Direction) > 0) {
+            normal = normal.Negate();
+            inside = true;
+        }
+        return new HitInfo(Owner, position, normal, new Ray(position, normal), material, inside);
+    }
+
+    // texture coordinates of point p on triangle i
+    Vector UV(int i, Vector p) {
+        double[] b = barycentric(i, p);
+        int o = i * 6;
+        return new Vector(b[0] * UVs[o] + b[1] * UVs[o + 2] + b[2] * UVs[o + 4],
+                b[0] * UVs[o + 1] + b[1] * UVs[o + 3] + b[2] * UVs[o + 5], 0);
+    }
+
+    // weights of the three vertices of triangle i at point p
+    double[] barycentric(int i, Vector p) {
+        double e1x = BX[i] - AX[i], e1y = BY[i] - AY[i], e1z = BZ[i] - AZ[i];
+        double e2x = CX[i] - AX[i], e2y = CY[i] - AY[i], e2z = CZ[i] - AZ[i];
+        double px = p.getX() - AX[i], py = p.getY() - AY[i], pz = p.getZ() - AZ[i];
+        double d00 = e1x * e1x + e1y * e1y + e1z * e1z;
+        double d01 = e1x * e2x + e1y * e2y + e1z * e2z;
+        double d11 = e2x * e2x + e2y * e2y + e2z * e2z;
+        double d20 = px * e1x + py * e1y + pz * e1z;
+        double d21 = px * e2x + py * e2y + pz * e2z;
+        double d = d00 * d11 - d01 * d01;
+        double v = (d11 * d20 - d01 * d21) / d;
+        double w = (d00 * d21 - d01 * d20) / d;
+        return new double[]{1 - v - w, v, w};
+    }
+
+    // face normal of triangle i
+    Vector Normal(int i) {
+        Vector e1 = new Vector(BX[i] - AX[i], BY[i] - AY[i], BZ[i] - AZ[i]);
+        Vector e2 = new Vector(CX[i] - AX[i], CY[i] - AY[i], CZ[i] - AZ[i]);
+        return e1.Cross(e2).Normalize();
+    }
+
+    // triangle i rebuilt from the packed arrays
+    Triangle Triangle(int i) {
+        Vector[] n = new Vector[3];
+        Vector[] uv = new Vector[3];
+        for (int k = 0; k < 3; k++) {
+            n[k] = new Vector(Normals[i * 9 + k * 3], Normals[i * 9 + k * 3 + 1], Normals[i * 9 + k * 3 + 2]);
+            uv[k] = new Vector(UVs[i * 6 + k * 2], UVs[i * 6 + k * 2 + 1], 0);
+        }
+        return Triangle.NewTriangle(new Vector(AX[i], AY[i], AZ[i]), new Vector(BX[i], BY[i], BZ[i]),
+                new Vector(CX[i], CY[i], CZ[i]), n[0], n[1], n[2], uv[0], uv[1], uv[2], Materials[MaterialIndex[i]]);
+    }
+
+    // every triangle rebuilt, in leaf order
+    Triangle[] Triangles() {
+        Triangle[] result = new Triangle[MaterialIndex.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = Triangle(i);
+        }
+        return result;
+    }
+}
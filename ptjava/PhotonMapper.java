@@ -0,0 +1,452 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2023 akava.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package ptjava;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import ptjava.Hit.HitInfo;
+
+// Stochastic progressive photon mapping (Hachisuka and Jensen). Every pass
+// traces one camera path per pixel through the specular and glossy bounces
+// to its first diffuse hit, the visible point, which takes its direct light
+// from light samples as the path tracer does. Photons are then shot from
+// Scene.Lights, carried through the same Ray.Bounce and stored at the
+// diffuse surfaces they reach after at least one bounce, so caustics through
+// glass and the diffuse interreflection come from the photon density around
+// the visible points. Each pixel keeps its gather radius, photon count and
+// flux across passes and the radius shrinks as photons accumulate, which
+// makes the estimate converge. Light from the environment only arrives
+// directly, photons are not shot from it.
+class PhotonMapper {
+
+    DefaultSampler Sampler;
+    int PhotonsPerPass;
+    // fraction of the new photons kept each pass, the rest shrinks the radius
+    double Alpha;
+    // initial gather radius, 0 sizes it to RadiusPixels pixel footprints
+    double InitialRadius;
+    double RadiusPixels;
+    long EmittedPhotons;
+    int Passes;
+    long CameraTime, PhotonTime, GatherTime;
+
+    // per pixel statistics kept across passes
+    double[] radius;
+    double[] count;
+    double[] flux;
+    double[] direct;
+
+    // visible points of the current pass
+    double[] vpPosition, vpNormal, vpWeight;
+    boolean[] vpValid;
+
+    // photons of the current pass and the grid over them
+    double[] photonPosition, photonDirection, photonPower;
+    AtomicInteger stored;
+    double cellSize;
+    int[] cellStart;
+    int[] cellPhotons;
+
+    PhotonMapper() {
+    }
+
+    static PhotonMapper NewPhotonMapper(DefaultSampler sampler) {
+        PhotonMapper p = new PhotonMapper();
+        p.Sampler = sampler;
+        p.PhotonsPerPass = 1 << 17;
+        p.Alpha = 0.7;
+        p.InitialRadius = 0;
+        p.RadiusPixels = 3;
+        p.stored = new AtomicInteger();
+        return p;
+    }
+
+    void allocate(int n) {
+        if (radius != null && radius.length == n) {
+            return;
+        }
+        radius = new double[n];
+        count = new double[n];
+        flux = new double[n * 3];
+        direct = new double[n * 3];
+        vpPosition = new double[n * 3];
+        vpNormal = new double[n * 3];
+        vpWeight = new double[n * 3];
+        vpValid = new boolean[n];
+        EmittedPhotons = 0;
+        Passes = 0;
+    }
+
+    // one pass over every pixel, the buffer is set to the current estimate
+    void Render(Scene scene, Camera camera, Buffer buf, SampleGenerator generator, int[] sampleIndex) {
+        int w = buf.W;
+        int h = buf.H;
+        allocate(w * h);
+        Passes++;
+
+        long t = System.nanoTime();
+        IntStream.range(0, w * h).parallel().forEach(p -> {
+            SampleStream stream = new SampleStream(generator, p, sampleIndex[p]++);
+            visiblePoint(scene, camera, w, h, p, stream);
+            Renderer.addFeatures(buf, p % w, p / w, stream);
+        });
+        CameraTime += System.nanoTime() - t;
+
+        t = System.nanoTime();
+        shoot(scene);
+        build();
+        PhotonTime += System.nanoTime() - t;
+
+        t = System.nanoTime();
+        double emitted = EmittedPhotons;
+        IntStream.range(0, w * h).parallel().forEach(p -> {
+            gather(p);
+            // photon estimates are not means of samples, so the buffer gets
+            // the estimate itself and no variance
+            double area = Math.PI * radius[p] * radius[p];
+            for (int c = 0; c < 3; c++) {
+                double indirect = area > 0 && emitted > 0 ? flux[p * 3 + c] / (area * emitted) : 0;
+                buf.M[p * 3 + c] = direct[p * 3 + c] / Passes + indirect;
+            }
+            buf.Samples[p] = Passes;
+        });
+        GatherTime += System.nanoTime() - t;
+    }
+
+    // follows the camera ray to its first diffuse hit, adding the light seen on the way
+    void visiblePoint(Scene scene, Camera camera, int w, int h, int p, SampleStream stream) {
+        DefaultSampler sampler = Sampler;
+        Ray ray = camera.CastRay(p % w, p / w, w, h, stream);
+        double tr = 1, tg = 1, tb = 1;
+        double r = 0, g = 0, b = 0;
+        double pdf = 0;
+        double travelled = 0;
+        vpValid[p] = false;
+
+        for (int depth = 0; depth <= sampler.MaxBounces; depth++) {
+            Hit hit = scene.Intersect(ray);
+            if (!hit.Ok()) {
+                Colour c = sampler.sampleEnvironment(scene, ray);
+                double e = sampler.environmentWeight(scene, ray, pdf);
+                r += tr * c.r * e;
+                g += tg * c.g * e;
+                b += tb * c.b * e;
+                break;
+            }
+
+            HitInfo info = hit.Info(ray);
+            DefaultSampler.recordFirstHit(stream, depth, hit, info);
+            travelled += hit.T;
+            Material material = info.material;
+            Colour color = material.Color;
+
+            if (material.Emittance > 0) {
+                double e = material.Emittance * sampler.emissionWeight(scene, ray, hit, pdf);
+                r += tr * color.r * e;
+                g += tg * color.g * e;
+                b += tb * color.b * e;
+            }
+
+            var bounceResult = ray.Bounce(info, stream.Next(), stream.Next(), BounceType.BounceTypeAny, stream.Random);
+
+            if (bounceResult.isReflected()) {
+                double tint = material.Tint;
+                tr *= (1 - tint) + tint * color.r;
+                tg *= (1 - tint) + tint * color.g;
+                tb *= (1 - tint) + tint * color.b;
+                if (bounceResult.getLobe() != Lobe.LobeSpecular && sampler.DirectLighting) {
+                    Colour d = sampler.sampleLights(scene, info.Ray, stream, bounceResult, depth >= sampler.MaxBounces);
+                    r += tr * d.r;
+                    g += tg * d.g;
+                    b += tb * d.b;
+                }
+                ray = bounceResult.getRay();
+                pdf = bounceResult.Pdf(ray.Direction);
+                continue;
+            }
+
+            // diffuse: direct light from both strategies, the rest from photons
+            tr *= color.r;
+            tg *= color.g;
+            tb *= color.b;
+            if (sampler.DirectLighting) {
+                Colour d = sampler.sampleLights(scene, info.Ray, stream, bounceResult, false);
+                r += tr * d.r;
+                g += tg * d.g;
+                b += tb * d.b;
+            }
+            Ray next = bounceResult.getRay();
+            Hit light = scene.Intersect(next);
+            double nextPdf = bounceResult.Pdf(next.Direction);
+            if (!light.Ok()) {
+                Colour c = sampler.sampleEnvironment(scene, next);
+                double e = sampler.environmentWeight(scene, next, nextPdf);
+                r += tr * c.r * e;
+                g += tg * c.g * e;
+                b += tb * c.b * e;
+            } else {
+                Material m = light.Info(next).material;
+                if (m.Emittance > 0) {
+                    double e = m.Emittance * sampler.emissionWeight(scene, next, light, nextPdf);
+                    r += tr * m.Color.r * e;
+                    g += tg * m.Color.g * e;
+                    b += tb * m.Color.b * e;
+                }
+            }
+
+            if (radius[p] == 0) {
+                radius[p] = InitialRadius > 0 ? InitialRadius : RadiusPixels * travelled * 2 / (camera.m * h);
+            }
+            Vector position = info.Position;
+            Vector normal = info.Normal;
+            vpPosition[p * 3] = position.getX();
+            vpPosition[p * 3 + 1] = position.getY();
+            vpPosition[p * 3 + 2] = position.getZ();
+            vpNormal[p * 3] = normal.getX();
+            vpNormal[p * 3 + 1] = normal.getY();
+            vpNormal[p * 3 + 2] = normal.getZ();
+            // lambertian brdf over the photons' flux
+            vpWeight[p * 3] = tr / Math.PI;
+            vpWeight[p * 3 + 1] = tg / Math.PI;
+            vpWeight[p * 3 + 2] = tb / Math.PI;
+            vpValid[p] = true;
+            break;
+        }
+
+        direct[p * 3] += r;
+        direct[p * 3 + 1] += g;
+        direct[p * 3 + 2] += b;
+    }
+
+    // shoots PhotonsPerPass photons from lights picked by power
+    void shoot(Scene scene) {
+        int n = PhotonsPerPass;
+        int capacity = n * (Sampler.MaxBounces + 1);
+        if (photonPosition == null || photonPosition.length != capacity * 3) {
+            photonPosition = new double[capacity * 3];
+            photonDirection = new double[capacity * 3];
+            photonPower = new double[capacity * 3];
+        }
+        stored.set(0);
+        if (scene.Lights.length == 0) {
+            return;
+        }
+        int pass = Passes;
+        IntStream.range(0, n).parallel().forEach(i -> photon(scene, new CounterRandom(i, pass)));
+        EmittedPhotons += n;
+    }
+
+    void photon(Scene scene, CounterRandom rand) {
+        int l = scene.lightPowers.Sample(rand.nextDouble());
+        IShape light = scene.Lights[l];
+        double pick = scene.lightPowers.Pdf(l);
+
+        // a point on the light and the side it leaves from
+        Vector position, normal;
+        double area;
+        double sides = 1;
+        if (light instanceof Emitter) {
+            Emitter emitter = (Emitter) light;
+            Emitter.SurfacePoint sp = emitter.SampleSurface(rand.nextDouble(), rand.nextDouble());
+            if (sp == null) {
+                return;
+            }
+            position = sp.Position;
+            normal = sp.Normal;
+            area = emitter.Area();
+            // open area lights shine from both faces, closed ones such as
+            // a cube only outwards, their inner faces are never seen
+            if (light instanceof Quad || light instanceof Triangle) {
+                sides = 2;
+                if (rand.nextDouble() < 0.5) {
+                    normal = normal.Negate();
+                }
+            }
+        } else {
+            Vector center = DefaultSampler.lightCenter(light);
+            double r = DefaultSampler.lightRadius(light);
+            normal = Vector.RandomUnitVector(rand);
+            position = center.Add(normal.MulScalar(r));
+            area = 4 * Math.PI * r * r;
+        }
+
+        Material material = Material.MaterialAt(light, position);
+        double scale = material.Emittance * area * sides * Math.PI / pick;
+        double pr = material.Color.r * scale;
+        double pg = material.Color.g * scale;
+        double pb = material.Color.b * scale;
+        Ray ray = new Ray(position, normal).WeightedBounce(rand.nextDouble(), rand.nextDouble(), rand);
+
+        for (int depth = 0; depth <= Sampler.MaxBounces; depth++) {
+            Hit hit = scene.Intersect(ray);
+            if (!hit.Ok()) {
+                return;
+            }
+            HitInfo info = hit.Info(ray);
+            Material m = info.material;
+            if (m.Emittance > 0) {
+                return;
+            }
+
+            var bounceResult = ray.Bounce(info, rand.nextDouble(), rand.nextDouble(), BounceType.BounceTypeAny, rand);
+            Colour color = m.Color;
+            double tr, tg, tb;
+            if (bounceResult.isReflected()) {
+                double tint = m.Tint;
+                tr = (1 - tint) + tint * color.r;
+                tg = (1 - tint) + tint * color.g;
+                tb = (1 - tint) + tint * color.b;
+            } else {
+                // the first landing is direct light, which the light samples cover
+                if (depth > 0) {
+                    store(info.Position, ray.Direction, pr, pg, pb);
+                }
+                tr = color.r;
+                tg = color.g;
+                tb = color.b;
+            }
+
+            // keep the photon with the probability of its throughput, power stays level
+            double q = DefaultSampler.roulette(tr, tg, tb);
+            if (q <= 0 || rand.nextDouble() >= q) {
+                return;
+            }
+            pr *= tr / q;
+            pg *= tg / q;
+            pb *= tb / q;
+            ray = bounceResult.getRay();
+        }
+    }
+
+    void store(Vector position, Vector direction, double r, double g, double b) {
+        int i = stored.getAndIncrement();
+        if (i * 3 >= photonPosition.length) {
+            return;
+        }
+        photonPosition[i * 3] = position.getX();
+        photonPosition[i * 3 + 1] = position.getY();
+        photonPosition[i * 3 + 2] = position.getZ();
+        photonDirection[i * 3] = direction.getX();
+        photonDirection[i * 3 + 1] = direction.getY();
+        photonDirection[i * 3 + 2] = direction.getZ();
+        photonPower[i * 3] = r;
+        photonPower[i * 3 + 1] = g;
+        photonPower[i * 3 + 2] = b;
+    }
+
+    // hash grid over this pass's photons, cells as large as the largest
+    // gather radius so that a lookup never reads more than 2 cells per axis
+    void build() {
+        int n = Math.min(stored.get(), photonPosition.length / 3);
+        double largest = 0;
+        for (int p = 0; p < radius.length; p++) {
+            if (vpValid[p]) {
+                largest = Math.max(largest, radius[p]);
+            }
+        }
+        cellSize = largest > 0 ? largest : 1;
+
+        int size = Integer.highestOneBit(Math.max(1, n) * 2 - 1) << 1;
+        int[] cell = new int[n];
+        cellStart = new int[size + 1];
+        for (int i = 0; i < n; i++) {
+            cell[i] = hash(cell(photonPosition[i * 3]), cell(photonPosition[i * 3 + 1]), cell(photonPosition[i * 3 + 2]), size);
+            cellStart[cell[i] + 1]++;
+        }
+        for (int i = 0; i < size; i++) {
+            cellStart[i + 1] += cellStart[i];
+        }
+        int[] next = cellStart.clone();
+        cellPhotons = new int[n];
+        for (int i = 0; i < n; i++) {
+            cellPhotons[next[cell[i]]++] = i;
+        }
+    }
+
+    long cell(double x) {
+        return (long) Math.floor(x / cellSize);
+    }
+
+    static int hash(long x, long y, long z, int size) {
+        long h = x * 73856093L ^ y * 19349663L ^ z * 83492791L;
+        return (int) (h & (size - 1));
+    }
+
+    // photons around the pixel's visible point, then the progressive radius update
+    void gather(int p) {
+        if (!vpValid[p]) {
+            return;
+        }
+        double x = vpPosition[p * 3], y = vpPosition[p * 3 + 1], z = vpPosition[p * 3 + 2];
+        double nx = vpNormal[p * 3], ny = vpNormal[p * 3 + 1], nz = vpNormal[p * 3 + 2];
+        double r = radius[p];
+        double r2 = r * r;
+        int size = cellStart.length - 1;
+        int m = 0;
+        double fr = 0, fg = 0, fb = 0;
+
+        for (long cx = cell(x - r); cx <= cell(x + r); cx++) {
+            for (long cy = cell(y - r); cy <= cell(y + r); cy++) {
+                for (long cz = cell(z - r); cz <= cell(z + r); cz++) {
+                    int c = hash(cx, cy, cz, size);
+                    for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+                        int i = cellPhotons[k];
+                        double dx = photonPosition[i * 3] - x;
+                        double dy = photonPosition[i * 3 + 1] - y;
+                        double dz = photonPosition[i * 3 + 2] - z;
+                        if (dx * dx + dy * dy + dz * dz > r2) {
+                            continue;
+                        }
+                        // photons arriving at the other side of the surface
+                        if (photonDirection[i * 3] * nx + photonDirection[i * 3 + 1] * ny + photonDirection[i * 3 + 2] * nz >= 0) {
+                            continue;
+                        }
+                        m++;
+                        fr += photonPower[i * 3];
+                        fg += photonPower[i * 3 + 1];
+                        fb += photonPower[i * 3 + 2];
+                    }
+                }
+            }
+        }
+
+        if (m == 0) {
+            return;
+        }
+        double n = count[p];
+        double next = n + Alpha * m;
+        double shrink = next / (n + m);
+        radius[p] = r * Math.sqrt(shrink);
+        flux[p * 3] = (flux[p * 3] + vpWeight[p * 3] * fr) * shrink;
+        flux[p * 3 + 1] = (flux[p * 3 + 1] + vpWeight[p * 3 + 1] * fg) * shrink;
+        flux[p * 3 + 2] = (flux[p * 3 + 2] + vpWeight[p * 3 + 2] * fb) * shrink;
+        count[p] = next;
+    }
+
+    String Stats() {
+        return String.format("pass %d, %d photons stored, camera %d ms, photons %d ms, gather %d ms", Passes,
+                Math.min(stored.get(), photonPosition.length / 3), CameraTime / 1000000, PhotonTime / 1000000, GatherTime / 1000000);
+    }
+}
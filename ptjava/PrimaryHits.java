@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2023 akava.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package ptjava;
+
+import java.util.stream.IntStream;
+
+// G-buffer of camera hits for a pinhole camera. Every pixel gets a fixed
+// set of strata * strata stratified sub-pixel positions whose rays are
+// traced once, later samples cycle through them and start shading from the
+// stored hit instead of traversing the scene again. The image converges to
+// the supersampled result at those positions, so it suits scenes where the
+// camera rays are the expensive part and the scene and camera stay put.
+class PrimaryHits {
+
+    Scene Scene;
+    int Version;
+    Camera Camera;
+    Vector Eye, Direction, Right, Up;
+    double Zoom, Focus;
+    int W, H;
+    int Strata;
+    Hit[] Hits;
+
+    PrimaryHits() {
+    }
+
+    static PrimaryHits NewPrimaryHits(Scene scene, Camera camera, int w, int h, int strata) {
+        PrimaryHits c = new PrimaryHits();
+        c.Scene = scene;
+        c.Version = scene.Version;
+        c.Camera = camera;
+        c.Eye = camera.p;
+        c.Direction = camera.w;
+        c.Right = camera.u;
+        c.Up = camera.v;
+        c.Zoom = camera.m;
+        c.Focus = camera.focalDistance;
+        c.W = w;
+        c.H = h;
+        c.Strata = strata;
+        c.Hits = new Hit[w * h * strata * strata];
+        c.build();
+        return c;
+    }
+
+    void build() {
+        int k = Strata * Strata;
+        IntStream.range(0, W * H).parallel().forEach(p -> {
+            for (int s = 0; s < k; s++) {
+                Ray r = ray(p % W, p / W, s);
+                Hit hit = Scene.Intersect(r);
+                Hits[p * k + s] = hit.Ok() ? hit : Hit.NoHit;
+            }
+        });
+    }
+
+    // whether the cached hits still describe what this camera sees
+    boolean Valid(Scene scene, Camera camera, int w, int h) {
+        return scene == Scene && scene.Version == Version && camera == Camera
+                && camera.p == Eye && camera.w == Direction && camera.u == Right && camera.v == Up
+                && camera.m == Zoom && camera.focalDistance == Focus
+                && camera.apertureRadius == 0 && w == W && h == H;
+    }
+
+    // camera ray of the pixel's sample, the stratum's hit is left on the stream
+    Ray CastRay(int x, int y, int sample, SampleStream stream) {
+        int k = Strata * Strata;
+        int s = Math.floorMod(sample, k);
+        // keep the stream on the same dimensions as Camera.CastRay
+        stream.Dimension += 2;
+        stream.Primary = Hits[(y * W + x) * k + s];
+        return ray(x, y, s);
+    }
+
+    Ray ray(int x, int y, int s) {
+        double u = (s % Strata + 0.5) / Strata;
+        double v = (s / Strata + 0.5) / Strata;
+        return Camera.castRay(x, y, W, H, u, v, 0, 0);
+    }
+}
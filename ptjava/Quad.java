@@ -1,8 +1,10 @@
 package ptjava;
 
-public class Quad implements IShape {
+public class Quad implements IShape, Emitter {
     Vector v0, v1, v2, v3;
     Material material;
+    // the two halves, with uvs and normals so hits on them can be shaded
+    Triangle t1, t2;
 
     public Quad(Vector v0, Vector v1, Vector v2, Vector v3, Material material) {
         this.v0 = v0;
@@ -10,6 +12,9 @@ public class Quad implements IShape {
         this.v2 = v2;
         this.v3 = v3;
         this.material = material;
+        Vector n = v1.Sub(v0).Cross(v2.Sub(v0)).Normalize();
+        this.t1 = Triangle.NewTriangle(v0, v1, v2, n, n, n, new Vector(0, 0, 0), new Vector(1, 0, 0), new Vector(1, 1, 0), material);
+        this.t2 = Triangle.NewTriangle(v0, v2, v3, n, n, n, new Vector(0, 0, 0), new Vector(1, 1, 0), new Vector(0, 1, 0), material);
     }
 
     @Override
@@ -17,6 +22,21 @@ public class Quad implements IShape {
         
     }
 
+    @Override
+    public double Area() {
+        return t1.Area() + t2.Area();
+    }
+
+    @Override
+    public SurfacePoint SampleSurface(double u, double v) {
+        // u picks the half by area and is reused within it
+        double p = t1.Area() / (t1.Area() + t2.Area());
+        if (u < p) {
+            return t1.SampleSurface(u / p, v);
+        }
+        return t2.SampleSurface(Math.min((u - p) / (1 - p), 1 - 1e-12), v);
+    }
+
     @Override
     public Box BoundingBox() {
         Vector min = v0.Min(v1).Min(v2).Min(v3);
@@ -43,8 +63,6 @@ public class Quad implements IShape {
 
     @Override
     public Hit Intersect(Ray ray) {
-        Triangle t1 = new Triangle(v0, v1, v2, material);
-        Triangle t2 = new Triangle(v0, v2, v3, material);
         Hit hit1 = t1.Intersect(ray);
         if (hit1.Ok()) return hit1;
         return t2.Intersect(ray);
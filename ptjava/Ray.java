@@ -24,7 +24,6 @@
 
 package ptjava;
 
-import java.util.concurrent.ThreadLocalRandom;
 import ptjava.Hit.HitInfo;
 
 public class Ray {
@@ -32,10 +31,29 @@ public class Ray {
     public Vector Origin, Direction;
     public boolean reflected;
     boolean reflect;
+
+    // origin, direction, reciprocal direction and direction signs unpacked
+    // for slab and triangle tests
+    double OX, OY, OZ;
+    double DX, DY, DZ;
+    double InvX, InvY, InvZ;
+    int SignX, SignY, SignZ;
     
     public Ray(Vector Origin, Vector Direction) {
         this.Origin = Origin;
         this.Direction = Direction;
+        OX = Origin.getX();
+        OY = Origin.getY();
+        OZ = Origin.getZ();
+        DX = Direction.getX();
+        DY = Direction.getY();
+        DZ = Direction.getZ();
+        InvX = 1 / DX;
+        InvY = 1 / DY;
+        InvZ = 1 / DZ;
+        SignX = InvX < 0 ? 1 : 0;
+        SignY = InvY < 0 ? 1 : 0;
+        SignZ = InvZ < 0 ? 1 : 0;
     }
 
     public Vector Position(double t) {
@@ -54,7 +72,7 @@ public class Ray {
         return this.Direction.Reflectance(i.Direction, n1, n2);
     }
 
-    public Ray WeightedBounce(double u, double v, ThreadLocalRandom rand) {
+    public Ray WeightedBounce(double u, double v, CounterRandom rand) {
         var radius = Math.sqrt(u);
         var theta = 2 * Math.PI * v;
         var s = Direction.Cross(Vector.RandomUnitVector(rand)).Normalize();
@@ -66,11 +84,11 @@ public class Ray {
         return new Ray(Origin, d);
     }
 
-    public Ray ConeBounce(double theta, double u, double v, ThreadLocalRandom rand) {
+    public Ray ConeBounce(double theta, double u, double v, CounterRandom rand) {
         return new Ray(this.Origin, Util.Cone(Direction, theta, u, v, rand));
     }
 
-    public BounceResult Bounce(HitInfo info, double u, double v, BounceType bounceType, ThreadLocalRandom rand) {
+    public BounceResult Bounce(HitInfo info, double u, double v, BounceType bounceType, CounterRandom rand) {
         Ray n = info.Ray;
         Material material = info.material;
 
@@ -108,12 +126,35 @@ public class Ray {
 
         if (reflect) {
             var reflected = n.Reflect(this);
-            return new BounceResult(reflected.ConeBounce(material.Gloss, u, v, rand), true, p);
+            Lobe lobe = material.Gloss < Util.EPS ? Lobe.LobeSpecular : Lobe.LobeGlossy;
+            return new BounceResult(reflected.ConeBounce(material.Gloss, u, v, rand), true, p, lobe, reflected.Direction, material.Gloss);
         } else if (material.Transparent) {
+            // light samples stay on the incident side, so refraction counts as delta
             var refracted = n.Refract(this, n1, n2);
-            return new BounceResult(refracted.ConeBounce(material.Gloss, u, v, rand), true, 1-p);
+            return new BounceResult(refracted.ConeBounce(material.Gloss, u, v, rand), true, 1-p, Lobe.LobeSpecular, refracted.Direction, material.Gloss);
         } else {
-            return new BounceResult(n.WeightedBounce(u, v, rand), false, 1 - p);
+            return new BounceResult(n.WeightedBounce(u, v, rand), false, 1 - p, Lobe.LobeDiffuse, n.Direction, 0);
+        }
+    }
+
+    // solid angle pdf of sampling direction d from a lobe around axis, zero for
+    // the delta lobes. The glossy lobe is the distribution of Util.Cone: the
+    // angle to the axis has density (pi / 2 theta) cos(pi a / 2 theta) below
+    // theta and the azimuth is uniform.
+    public static double LobePdf(Lobe lobe, Vector axis, double theta, Vector d) {
+        double c = axis.Dot(d);
+        switch (lobe) {
+            case LobeDiffuse:
+                return Math.max(c, 0) / Math.PI;
+            case LobeGlossy:
+                double a = Math.acos(Math.min(Math.max(c, -1), 1));
+                if (a >= theta) {
+                    return 0;
+                }
+                double pa = Math.PI / (2 * theta) * Math.cos(Math.PI * a / (2 * theta));
+                return pa / (2 * Math.PI * Math.max(Math.sin(a), 1e-6));
+            default:
+                return 0;
         }
     }
 
@@ -121,11 +162,17 @@ public class Ray {
         private Ray ray;
         private boolean reflected;
         private double probability;
+        private Lobe lobe;
+        private Vector axis;
+        private double theta;
     
-        public BounceResult(Ray ray, boolean reflected, double probability) {
+        public BounceResult(Ray ray, boolean reflected, double probability, Lobe lobe, Vector axis, double theta) {
             this.ray = ray;
             this.reflected = reflected;
             this.probability = probability;
+            this.lobe = lobe;
+            this.axis = axis;
+            this.theta = theta;
         }
     
         public Ray getRay() {
@@ -139,5 +186,14 @@ public class Ray {
         public double getProbability() {
             return probability;
         }
+
+        public Lobe getLobe() {
+            return lobe;
+        }
+
+        // pdf of the sampled lobe producing direction d
+        public double Pdf(Vector d) {
+            return LobePdf(lobe, axis, theta, d);
+        }
     }
 }
\ No newline at end of file
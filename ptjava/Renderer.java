@@ -28,21 +28,20 @@ import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import javax.imageio.ImageIO;
 import javax.swing.JPanel;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.SplittableRandom;
-import java.awt.Point;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.IntStream;
 import java.io.File;
+import ptjava.Hit.HitInfo;
 
 final class Renderer {
 
+    // passes a pixel takes before adaptive sampling may call it converged
+    static final int AdaptiveMinSamples = 16;
+
     Scene Scene;
     Camera Camera;
     Sampler Sampler;
@@ -50,12 +49,27 @@ final class Renderer {
     int SamplesPerPixel;
     public boolean StratifiedSampling;
     public int AdaptiveSamples;
+    // standard error below which a pixel counts as converged
     double AdaptiveThreshold;
     double AdaptiveExponent;
     public int FireflySamples;
     double FireflyThreshold;
     int iterations;
     String pathTemplate;
+    RenderMode renderMode = RenderMode.RenderModeTiles;
+    SampleMode sampleMode = SampleMode.SampleModeRandom;
+    SampleGenerator generator;
+    // next sample index of every pixel, only touched by the pixel's owner
+    int[] sampleIndex;
+    Wavefront wavefront;
+    PhotonMapper photonMapper;
+    Restir restir;
+    // reuse the camera hits of a pinhole camera across iterations
+    public boolean CachePrimaryHits;
+    int PrimaryHitStrata;
+    PrimaryHits primaryHits;
+    // filters the final image when set
+    Denoiser Denoiser;
 
     Renderer() {
     }
@@ -69,10 +83,12 @@ final class Renderer {
         r.SamplesPerPixel = 1;
         r.StratifiedSampling = false;
         r.AdaptiveSamples = 0;
-        r.AdaptiveExponent = 0;
-        r.AdaptiveThreshold = 1;
+        r.AdaptiveExponent = 1;
+        r.AdaptiveThreshold = 0.01;
         r.FireflySamples = 0;
         r.FireflyThreshold = 1;
+        r.CachePrimaryHits = false;
+        r.PrimaryHitStrata = 2;
         return r;
     }
 
@@ -86,10 +102,39 @@ final class Renderer {
         int spp = SamplesPerPixel;
         scene.Compile();
         scene.rays = new AtomicInteger(0);
-        
-        long seed = System.nanoTime();
-        ThreadLocalRandom rand = ThreadLocalRandom.current();
+        generator = sampleGenerator();
+        if (sampleIndex == null || sampleIndex.length != w * h) {
+            sampleIndex = new int[w * h];
+        }
+        primaryHits = primaryHits(scene, camera, w, h);
+
+        if (renderMode == RenderMode.RenderModePhotons && sampler instanceof DefaultSampler) {
+            if (photonMapper == null || photonMapper.Sampler != sampler) {
+                photonMapper = PhotonMapper.NewPhotonMapper((DefaultSampler) sampler);
+            }
+            photonMapper.Render(scene, camera, buf, generator, sampleIndex);
+            show(buf, renderedImage, renderPanel);
+            return;
+        }
+
+        if (renderMode == RenderMode.RenderModeRestir && sampler instanceof DefaultSampler) {
+            if (restir == null || restir.Sampler != sampler) {
+                restir = Restir.NewRestir((DefaultSampler) sampler);
+            }
+            restir.Render(scene, camera, buf, generator, sampleIndex);
+            show(buf, renderedImage, renderPanel);
+            return;
+        }
 
+        if (renderMode == RenderMode.RenderModeWavefront && sampler instanceof DefaultSampler) {
+            if (wavefront == null || wavefront.Sampler != sampler) {
+                wavefront = Wavefront.NewWavefront((DefaultSampler) sampler);
+            }
+            wavefront.Render(scene, camera, buf, spp, generator, sampleIndex, primaryHits);
+            show(buf, renderedImage, renderPanel);
+            return;
+        }
+        
         /*
         try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
             IntStream.range(0, h).parallel().forEach(y -> {
@@ -138,43 +183,61 @@ final class Renderer {
                     int subXEnd = Math.min(subXStart + subTileSize, xEnd);
                     int subYEnd = Math.min(subYStart + subTileSize, yEnd);
 
+                    if (subXStart >= subXEnd || subYStart >= subYEnd) {
+                        continue;
+                    }
+
+                    // each task owns its sub-tile, so its pixels are written without locking
                     executor.submit(() -> {
-                        
-                        Map<Point, Colour> localBuffer = new ConcurrentHashMap<>();
+                        int subW = subXEnd - subXStart;
+                        double[] local = new double[subW * (subYEnd - subYStart) * 3];
+
+                        boolean[] done = new boolean[subW * (subYEnd - subYStart)];
 
                         for (int y = subYStart; y < subYEnd; y++) {
                             for (int x = subXStart; x < subXEnd; x++) {
-                                Colour sample = Colour.Black;
+                                int i = ((y - subYStart) * subW + x - subXStart) * 3;
+                                done[i / 3] = converged(buf, x, y);
+                                if (done[i / 3]) {
+                                    continue;
+                                }
 
                                 for (int r = 0; r < spp; r++) {
-                                    double xOffset = rand.nextDouble();
-                                    double yOffset = rand.nextDouble();
-
-                                    double fu = (x + xOffset) / w;
-                                    double fv = (y + yOffset) / h;
-                                    Ray ray = camera.CastRay(x, y, w, h, fu, fv, rand);
-                                    sample = sample.Add(sampler.Sample(scene, ray, rand));
+                                    Colour sample = samplePixel(x, y, w, h);
+                                    local[i] += sample.r;
+                                    local[i + 1] += sample.g;
+                                    local[i + 2] += sample.b;
                                 }
-
-                                sample.DivScalar(spp);
-                                localBuffer.put(new Point(x, y), sample);
                             }
                         }
 
-                        synchronized (buf) {
-                            localBuffer.forEach((point, color) -> buf.AddSample(point, color));
-                        }
+                        for (int y = subYStart; y < subYEnd; y++) {
+                            for (int x = subXStart; x < subXEnd; x++) {
+                                int i = ((y - subYStart) * subW + x - subXStart) * 3;
+                                if (done[i / 3]) {
+                                    continue;
+                                }
+                                buf.AddSample(x, y, local[i] / spp, local[i + 1] / spp, local[i + 2] / spp);
+
+                                // adaptive sampling
+                                int extra = adaptiveSamples(buf, x, y);
+                                for (int e = 0; e < extra; e++) {
+                                    Colour sample = samplePixel(x, y, w, h);
+                                    buf.AddSample(x, y, sample.r, sample.g, sample.b);
+                                }
 
-                        synchronized (renderedImage) {
-                            for (int y = subYStart; y < subYEnd; y++) {
-                                for (int x = subXStart; x < subXEnd; x++) {
-                                    Colour pixelColor = buf.Pixels[y * w + x].Color().Pow(1.0 / 2.2);
-                                    int colorInt = Colour.getIntFromColor(pixelColor.r, pixelColor.g, pixelColor.b);
-                                    renderedImage.setRGB(x, y, colorInt);
+                                // firefly reduction, done by the owning task so it overlaps the other tiles
+                                if (FireflySamples > 0 && buf.StandardDeviation(x, y).MaxComponent() > FireflyThreshold) {
+                                    for (int e = 0; e < FireflySamples; e++) {
+                                        Colour sample = samplePixel(x, y, w, h);
+                                        buf.AddSample(x, y, sample.r, sample.g, sample.b);
+                                    }
                                 }
+
+                                renderedImage.setRGB(x, y, buf.RGB(x, y));
                             }
-                            renderPanel.repaint();
                         }
+                        renderPanel.repaint();
                     });
                 }
             }
@@ -189,28 +252,137 @@ final class Renderer {
         }
     }
 
+    // copies the whole buffer into the preview, for the modes that render a pass at once
+    void show(Buffer buf, BufferedImage renderedImage, JPanel renderPanel) {
+        synchronized (renderedImage) {
+            for (int y = 0; y < buf.H; y++) {
+                for (int x = 0; x < buf.W; x++) {
+                    renderedImage.setRGB(x, y, buf.RGB(x, y));
+                }
+            }
+            renderPanel.repaint();
+        }
+    }
+
+    // one sample of pixel x, y, taken at the pixel's next index of the sample sequence
+    Colour samplePixel(int x, int y, int w, int h) {
+        int pixel = y * w + x;
+        SampleStream stream = new SampleStream(generator, pixel, sampleIndex[pixel]++);
+        Ray ray = primaryHits != null ? primaryHits.CastRay(x, y, stream.Index, stream) : Camera.CastRay(x, y, w, h, stream);
+        Colour sample = Sampler.Sample(Scene, ray, stream);
+        addFeatures(PBuffer, x, y, stream);
+        return sample;
+    }
+
+    // first-hit albedo, normal and depth of a sample, misses count as black and far away
+    static void addFeatures(Buffer buf, int x, int y, SampleStream stream) {
+        HitInfo info = stream.First;
+        if (info == null) {
+            buf.AddFeatures(x, y, 0, 0, 0, 0, 0, 0, Hit.INF);
+            return;
+        }
+        Colour a = info.material.Color;
+        Vector n = info.Normal;
+        buf.AddFeatures(x, y, a.r, a.g, a.b, n.getX(), n.getY(), n.getZ(), stream.FirstT);
+    }
+
+    // cached camera hits when enabled, rebuilt when the view changes; a lens
+    // camera needs fresh rays every sample so it never uses the cache
+    PrimaryHits primaryHits(Scene scene, Camera camera, int w, int h) {
+        if (!CachePrimaryHits || camera.apertureRadius > 0) {
+            return null;
+        }
+        if (primaryHits != null && primaryHits.Valid(scene, camera, w, h)) {
+            return primaryHits;
+        }
+        return PrimaryHits.NewPrimaryHits(scene, camera, w, h, PrimaryHitStrata);
+    }
+
+    // StratifiedSampling turns the default random sequence into jittered strata
+    SampleGenerator sampleGenerator() {
+        SampleMode mode = sampleMode;
+        if (StratifiedSampling && mode == SampleMode.SampleModeRandom) {
+            mode = SampleMode.SampleModeStratified;
+        }
+        return SampleGenerator.NewSampleGenerator(mode, SamplesPerPixel);
+    }
+
+    public void SetSampleMode(SampleMode sm) {
+        this.sampleMode = sm;
+    }
+
+    // with adaptive sampling on, a pixel whose mean is known to within
+    // AdaptiveThreshold after AdaptiveMinSamples passes gets no more samples
+    boolean converged(Buffer buf, int x, int y) {
+        return AdaptiveSamples > 0 && buf.Samples(x, y) >= AdaptiveMinSamples
+                && buf.StandardError(x, y).MaxComponent() < AdaptiveThreshold;
+    }
+
+    // extra samples for a pixel, scaled by how far its standard error is
+    // above AdaptiveThreshold, in full from twice the threshold
+    int adaptiveSamples(Buffer buf, int x, int y) {
+        if (AdaptiveSamples <= 0) {
+            return 0;
+        }
+        double v = buf.StandardError(x, y).MaxComponent() / AdaptiveThreshold - 1;
+        v = Math.min(Math.max(v, 0), 1);
+        v = Math.pow(v, AdaptiveExponent);
+        return (int) (v * AdaptiveSamples);
+    }
+
+    public void SetRenderMode(RenderMode rm) {
+        this.renderMode = rm;
+    }
+
+    public void SetDenoiser(Denoiser d) {
+        this.Denoiser = d;
+    }
+
     public void IterativeRender(String pathTemplate, int iterations, BufferedImage renderedImage, JPanel renderPanel)
             throws InterruptedException, IOException {
         this.iterations = iterations;
         this.pathTemplate = pathTemplate;
 
         for (int iter = 1; iter <= this.iterations; iter++) {
+            long start = System.nanoTime();
             RenderParallel(renderedImage, renderPanel);
+            double seconds = (System.nanoTime() - start) / 1e9;
 
             for (int y = 0; y < PBuffer.H; y++) {
                 for (int x = 0; x < PBuffer.W; x++) {
-                    var pixelColor = PBuffer.Pixels[y * PBuffer.W + x].Color().Pow(1.0 / 2.2);
-                    int colorInt = Colour.getIntFromColor(pixelColor.r, pixelColor.g, pixelColor.b);
-                    renderedImage.setRGB(x, y, colorInt);
+                    renderedImage.setRGB(x, y, PBuffer.RGB(x, y));
                 }
             }
 
             renderPanel.repaint();
-            System.out.print("\r[Iteration: " + iter + " of " + iterations + "]");
+            System.out.print("\r[Iteration: " + iter + " of " + iterations + "] "
+                    + String.format("%.0f", Scene.rays.get() / seconds) + " rays/s");
+            if (renderMode == RenderMode.RenderModeWavefront && wavefront != null) {
+                System.out.print(" (" + wavefront.Stats() + ")");
+            }
+            if (renderMode == RenderMode.RenderModePhotons && photonMapper != null) {
+                System.out.print(" (" + photonMapper.Stats() + ")");
+            }
+            if (renderMode == RenderMode.RenderModeRestir && restir != null) {
+                System.out.print(" (" + restir.Stats() + ")");
+            }
+
+        }
 
+        Buffer result = PBuffer;
+        if (Denoiser != null) {
+            long start = System.nanoTime();
+            result = Denoiser.Denoise(PBuffer);
+            System.out.printf("%nDenoised in %d ms", (System.nanoTime() - start) / 1000000);
+            for (int y = 0; y < result.H; y++) {
+                for (int x = 0; x < result.W; x++) {
+                    renderedImage.setRGB(x, y, result.RGB(x, y));
+                }
+            }
+            renderPanel.repaint();
         }
 
         System.out.println("\nIteration Completed. Writing image...");
-        ImageIO.write(PBuffer.Image(Buffer.Channel.ColorChannel), "png", new File(pathTemplate));
+        ImageIO.write(result.Image(Buffer.Channel.ColorChannel), "png", new File(pathTemplate));
     }
 }
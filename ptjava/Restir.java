@@ -0,0 +1,453 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2023 akava.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package ptjava;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import ptjava.Hit.HitInfo;
+
+// Direct lighting with reservoir resampling (Bitterli et al., ReSTIR). Each
+// pass follows the camera ray through the specular and glossy bounces to its
+// first diffuse hit and fills the pixel's reservoir by resampling
+// Candidates light points, drawn as the sampler draws its light samples,
+// against their unshadowed contribution. The reservoir is merged with the pixel's
+// reservoir of the last pass and then with a few neighbours' when their
+// surfaces agree, and only the point that survives gets a shadow ray. The
+// reservoirs are combined with balance heuristic weights over the unshadowed
+// contribution, and the next pass only reuses the reservoirs from before the
+// neighbours were merged in and before the shadow ray, so every pass is an
+// estimate of its own that the buffer can average.
+// Light from the environment is only seen directly.
+class Restir {
+
+    static final double EPS = 1e-6;
+    // a light point is its position, normal, radiance and whether it emits from both faces
+    static final int PointSize = 10;
+
+    DefaultSampler Sampler;
+    int Candidates;
+    int Neighbours;
+    double NeighbourRadius;
+    // the last pass counts for at most this many times Candidates
+    int HistoryLimit;
+    long ShadeTime, ReuseTime;
+
+    // shading point of every pixel, invalid where the path found no diffuse surface
+    Surfaces current, previous;
+    // reservoirs after the temporal step, which the next pass reuses, and
+    // after the spatial step, which get shaded
+    Reservoirs temporal, shaded, history;
+
+    Restir() {
+    }
+
+    static Restir NewRestir(DefaultSampler sampler) {
+        Restir r = new Restir();
+        r.Sampler = sampler;
+        r.Candidates = 32;
+        r.Neighbours = 5;
+        r.NeighbourRadius = 30;
+        r.HistoryLimit = 20;
+        return r;
+    }
+
+    void allocate(int n) {
+        if (current != null && current.Valid.length == n) {
+            return;
+        }
+        current = new Surfaces(n);
+        previous = new Surfaces(n);
+        temporal = new Reservoirs(n);
+        shaded = new Reservoirs(n);
+        history = new Reservoirs(n);
+    }
+
+    // one sample of direct light per pixel added to the buffer
+    void Render(Scene scene, Camera camera, Buffer buf, SampleGenerator generator, int[] sampleIndex) {
+        int w = buf.W;
+        int h = buf.H;
+        allocate(w * h);
+        int[] index = new int[w * h];
+        double[] seen = new double[w * h * 3];
+
+        long t = System.nanoTime();
+        IntStream.range(0, w * h).parallel().forEach(p -> {
+            index[p] = sampleIndex[p]++;
+            SampleStream stream = new SampleStream(generator, p, index[p]);
+            shadingPoint(scene, camera, w, h, p, stream, seen);
+            Renderer.addFeatures(buf, p % w, p / w, stream);
+            temporal.Clear(p);
+            if (current.Valid[p] && scene.Lights.length > 0) {
+                candidates(scene, p, stream);
+                if (similar(current, p, previous, p)) {
+                    double m = Math.min(history.M[p], HistoryLimit * Candidates);
+                    combine(temporal, p, new Surfaces[]{current, previous}, new Reservoirs[]{temporal, history},
+                            new int[]{p, p}, new double[]{temporal.M[p], m}, 2, stream.Random);
+                }
+            }
+        });
+        ShadeTime += System.nanoTime() - t;
+
+        t = System.nanoTime();
+        IntStream.range(0, w * h).parallel().forEach(p -> {
+            shaded.Clear(p);
+            if (!current.Valid[p]) {
+                return;
+            }
+            // a second generator over the same pixel sample for the reuse choices
+            CounterRandom rand = new CounterRandom(p, ~index[p]);
+            Surfaces[] surfaces = new Surfaces[Neighbours + 1];
+            Reservoirs[] from = new Reservoirs[Neighbours + 1];
+            int[] pixels = new int[Neighbours + 1];
+            double[] m = new double[Neighbours + 1];
+            int count = 0;
+            pixels[count] = p;
+            m[count++] = temporal.M[p];
+            for (int k = 0; k < Neighbours; k++) {
+                double angle = 2 * Math.PI * rand.nextDouble();
+                double distance = NeighbourRadius * Math.sqrt(rand.nextDouble());
+                int x = p % w + (int) Math.round(Math.cos(angle) * distance);
+                int y = p / w + (int) Math.round(Math.sin(angle) * distance);
+                int q = y * w + x;
+                if (x < 0 || x >= w || y < 0 || y >= h || q == p || !similar(current, p, current, q)) {
+                    continue;
+                }
+                pixels[count] = q;
+                m[count++] = temporal.M[q];
+            }
+            Arrays.fill(surfaces, current);
+            Arrays.fill(from, temporal);
+            combine(shaded, p, surfaces, from, pixels, m, count, rand);
+        });
+        ReuseTime += System.nanoTime() - t;
+
+        t = System.nanoTime();
+        IntStream.range(0, w * h).parallel().forEach(p -> {
+            double r = seen[p * 3], g = seen[p * 3 + 1], b = seen[p * 3 + 2];
+            if (current.Valid[p] && shaded.W[p] > 0) {
+                double[] point = shaded.Point(p);
+                double f = shade(scene, p, point);
+                r += point[6] * current.Albedo[p * 3] * f;
+                g += point[7] * current.Albedo[p * 3 + 1] * f;
+                b += point[8] * current.Albedo[p * 3 + 2] * f;
+            }
+            buf.AddSample(p % w, p / w, r, g, b);
+        });
+        ShadeTime += System.nanoTime() - t;
+
+        // this pass's temporal reservoirs and surfaces are the next pass's history,
+        // reusing the shaded ones would count the neighbours again every pass
+        Reservoirs rs = history;
+        history = temporal;
+        temporal = rs;
+        Surfaces s = previous;
+        previous = current;
+        current = s;
+    }
+
+    // follows the camera ray to its first diffuse hit, seen holds the light found on the way
+    void shadingPoint(Scene scene, Camera camera, int w, int h, int p, SampleStream stream, double[] seen) {
+        DefaultSampler sampler = Sampler;
+        Ray ray = camera.CastRay(p % w, p / w, w, h, stream);
+        double tr = 1, tg = 1, tb = 1;
+        double travelled = 0;
+        current.Valid[p] = false;
+
+        for (int depth = 0; depth <= sampler.MaxBounces; depth++) {
+            Hit hit = scene.Intersect(ray);
+            if (!hit.Ok()) {
+                Colour c = sampler.sampleEnvironment(scene, ray);
+                seen[p * 3] += tr * c.r;
+                seen[p * 3 + 1] += tg * c.g;
+                seen[p * 3 + 2] += tb * c.b;
+                return;
+            }
+
+            HitInfo info = hit.Info(ray);
+            DefaultSampler.recordFirstHit(stream, depth, hit, info);
+            travelled += hit.T;
+            Material material = info.material;
+            Colour color = material.Color;
+
+            // no light samples are taken on the way, so emission counts in full
+            if (material.Emittance > 0) {
+                seen[p * 3] += tr * color.r * material.Emittance;
+                seen[p * 3 + 1] += tg * color.g * material.Emittance;
+                seen[p * 3 + 2] += tb * color.b * material.Emittance;
+            }
+
+            var bounceResult = ray.Bounce(info, stream.Next(), stream.Next(), BounceType.BounceTypeAny, stream.Random);
+            if (!bounceResult.isReflected()) {
+                current.Set(p, info.Position, info.Normal, tr * color.r, tg * color.g, tb * color.b, travelled);
+                return;
+            }
+
+            double tint = material.Tint;
+            tr *= (1 - tint) + tint * color.r;
+            tg *= (1 - tint) + tint * color.g;
+            tb *= (1 - tint) + tint * color.b;
+            ray = bounceResult.getRay();
+        }
+    }
+
+    // resampled importance sampling of Candidates light points into temporal
+    void candidates(Scene scene, int p, SampleStream stream) {
+        double[] point = new double[PointSize];
+        Vector position = new Vector(current.Position[p * 3], current.Position[p * 3 + 1], current.Position[p * 3 + 2]);
+        Vector normal = new Vector(current.Normal[p * 3], current.Normal[p * 3 + 1], current.Normal[p * 3 + 2]);
+        Ray n = new Ray(position, normal);
+        // every light at once is no candidate distribution, it picks uniformly instead
+        boolean uniform = Sampler.lightMode == LightMode.LightModeAll;
+        int count = scene.Lights.length;
+        for (int k = 0; k < Candidates; k++) {
+            double u = stream.Random.nextDouble();
+            int l = uniform ? Math.min((int) (u * count), count - 1) : Sampler.pickLight(scene, position, u);
+            double pick = uniform ? 1.0 / count : Sampler.selectPdf(scene, position, l);
+            double source = pick > 0 ? lightPoint(scene, scene.Lights[l], pick, n, stream, point) : 0;
+            // a candidate that missed still counts towards M
+            double weight = source > 0 ? target(current, p, point, l) / source : 0;
+            temporal.Update(p, l, point, weight, 1, stream.Random);
+        }
+        finish(temporal, p, temporal.M[p]);
+    }
+
+    // resamples count reservoirs, worth m[k] samples each, into reservoir p of
+    // to. Each kept point is weighed by the balance heuristic over the shading
+    // points the reservoirs were drawn for, which keeps a point that was
+    // unlikely where it came from from turning into a firefly where it lands.
+    void combine(Reservoirs to, int p, Surfaces[] surfaces, Reservoirs[] from, int[] pixels, double[] m, int count, CounterRandom rand) {
+        int[] lights = new int[count];
+        double[][] points = new double[count][];
+        double[] weights = new double[count];
+        for (int k = 0; k < count; k++) {
+            Reservoirs r = from[k];
+            lights[k] = r.Light[pixels[k]];
+            if (lights[k] < 0 || m[k] <= 0) {
+                continue;
+            }
+            points[k] = r.Point(pixels[k]);
+            double sum = 0;
+            for (int j = 0; j < count; j++) {
+                sum += m[j] * target(surfaces[j], pixels[j], points[k], lights[k]);
+            }
+            double own = m[k] * target(surfaces[k], pixels[k], points[k], lights[k]);
+            weights[k] = sum > 0 ? own / sum * target(current, p, points[k], lights[k]) * r.W[pixels[k]] : 0;
+        }
+        to.Clear(p);
+        for (int k = 0; k < count; k++) {
+            to.Update(p, lights[k], points[k], weights[k], Math.max(0, m[k]), rand);
+        }
+        finish(to, p, 1);
+    }
+
+    // adds m samples' worth of reservoir j of from into reservoir i of to
+    // the reservoir's weight, the inverse of the sample's effective pdf, where
+    // z is the number of samples that could have been the kept one
+    void finish(Reservoirs r, int i, double z) {
+        if (r.Light[i] < 0 || z <= 0) {
+            r.W[i] = 0;
+            return;
+        }
+        double target = target(current, i, r.Point(i), r.Light[i]);
+        r.W[i] = target > 0 ? r.Sum[i] / (z * target) : 0;
+    }
+
+
+    // unshadowed contribution of a light point at pixel p's shading point, by luminance
+    double target(Surfaces s, int p, double[] point, int light) {
+        double g = geometry(s, p, point);
+        if (g <= 0) {
+            return 0;
+        }
+        return g * (0.2126 * point[6] * s.Albedo[p * 3] + 0.7152 * point[7] * s.Albedo[p * 3 + 1]
+                + 0.0722 * point[8] * s.Albedo[p * 3 + 2]) / Math.PI;
+    }
+
+    // cosines over squared distance between the shading point and a light point
+    static double geometry(Surfaces s, int p, double[] point) {
+        double dx = point[0] - s.Position[p * 3];
+        double dy = point[1] - s.Position[p * 3 + 1];
+        double dz = point[2] - s.Position[p * 3 + 2];
+        double d2 = dx * dx + dy * dy + dz * dz;
+        if (d2 <= 0) {
+            return 0;
+        }
+        double d = Math.sqrt(d2);
+        double cosS = (dx * s.Normal[p * 3] + dy * s.Normal[p * 3 + 1] + dz * s.Normal[p * 3 + 2]) / d;
+        double cosL = -(dx * point[3] + dy * point[4] + dz * point[5]) / d;
+        if (point[9] != 0) {
+            cosL = Math.abs(cosL);
+        }
+        if (cosS <= 0 || cosL <= 0) {
+            return 0;
+        }
+        return cosS * cosL / d2;
+    }
+
+    // the one shadow ray of the pixel, returns the factor on radiance times albedo
+    double shade(Scene scene, int p, double[] point) {
+        Vector origin = new Vector(current.Position[p * 3], current.Position[p * 3 + 1], current.Position[p * 3 + 2]);
+        Vector d = new Vector(point[0], point[1], point[2]).Sub(origin);
+        double dist = d.Length();
+        if (scene.Occluded(new Ray(origin, d.DivScalar(dist)), dist * (1 - EPS))) {
+            return 0;
+        }
+        return geometry(current, p, point) / Math.PI * shaded.W[p];
+    }
+
+    // a point on the light seen from the shading ray n into point, returns
+    // its pdf by area. Emitters are sampled uniformly by area, other lights
+    // through the sampler's cone sampling, whose solid angle pdf is turned
+    // into area so that the point stays valid for the neighbours.
+    double lightPoint(Scene scene, IShape light, double pick, Ray n, SampleStream stream, double[] point) {
+        Vector position, normal;
+        double pdf;
+        // area lights shine from both faces, the rest only outwards
+        double sides = 0;
+        if (light instanceof Emitter) {
+            Emitter emitter = (Emitter) light;
+            Emitter.SurfacePoint sp = emitter.SampleSurface(n.Origin, stream.Random.nextDouble(), stream.Random.nextDouble());
+            if (sp == null) {
+                return 0;
+            }
+            position = sp.Position;
+            normal = sp.Normal;
+            pdf = pick / emitter.Area(n.Origin);
+            sides = 1;
+        } else {
+            DefaultSampler.LightSample ls = Sampler.lightSample(scene, n, stream, light, pick);
+            if (ls == null) {
+                return 0;
+            }
+            double dist = ls.MaxT / (1 - DefaultSampler.EPS);
+            position = ls.Ray.Position(dist);
+            normal = light instanceof Sphere ? position.Sub(((Sphere) light).Center).Normalize() : light.NormalAt(position);
+            double cos = -normal.Dot(ls.Ray.Direction);
+            if (cos <= 0) {
+                return 0;
+            }
+            pdf = ls.Pdf * cos / (dist * dist);
+        }
+        Material material = Material.MaterialAt(light, position);
+        point[0] = position.getX();
+        point[1] = position.getY();
+        point[2] = position.getZ();
+        point[3] = normal.getX();
+        point[4] = normal.getY();
+        point[5] = normal.getZ();
+        point[6] = material.Color.r * material.Emittance;
+        point[7] = material.Color.g * material.Emittance;
+        point[8] = material.Color.b * material.Emittance;
+        point[9] = sides;
+        return pdf;
+    }
+
+    // whether pixel q's shading point can stand in for pixel p's
+    static boolean similar(Surfaces a, int p, Surfaces b, int q) {
+        if (!a.Valid[p] || !b.Valid[q]) {
+            return false;
+        }
+        double dot = a.Normal[p * 3] * b.Normal[q * 3] + a.Normal[p * 3 + 1] * b.Normal[q * 3 + 1] + a.Normal[p * 3 + 2] * b.Normal[q * 3 + 2];
+        return dot > 0.9 && Math.abs(a.Depth[p] - b.Depth[q]) <= 0.1 * a.Depth[p];
+    }
+
+    String Stats() {
+        return String.format("shade %d ms, reuse %d ms", ShadeTime / 1000000, ReuseTime / 1000000);
+    }
+
+    static class Surfaces {
+        boolean[] Valid;
+        double[] Position;
+        double[] Normal;
+        // path throughput times the diffuse colour
+        double[] Albedo;
+        double[] Depth;
+
+        Surfaces(int n) {
+            Valid = new boolean[n];
+            Position = new double[n * 3];
+            Normal = new double[n * 3];
+            Albedo = new double[n * 3];
+            Depth = new double[n];
+        }
+
+        void Set(int p, Vector position, Vector normal, double r, double g, double b, double depth) {
+            Valid[p] = true;
+            Position[p * 3] = position.getX();
+            Position[p * 3 + 1] = position.getY();
+            Position[p * 3 + 2] = position.getZ();
+            Normal[p * 3] = normal.getX();
+            Normal[p * 3 + 1] = normal.getY();
+            Normal[p * 3 + 2] = normal.getZ();
+            Albedo[p * 3] = r;
+            Albedo[p * 3 + 1] = g;
+            Albedo[p * 3 + 2] = b;
+            Depth[p] = depth;
+        }
+    }
+
+    // one weighted reservoir per pixel: the kept light point with its
+    // normal and radiance, the sum of weights, the samples seen and the weight
+    static class Reservoirs {
+        int[] Light;
+        double[] Sample;
+        double[] Sum;
+        double[] M;
+        double[] W;
+
+        Reservoirs(int n) {
+            Light = new int[n];
+            Sample = new double[n * PointSize];
+            Sum = new double[n];
+            M = new double[n];
+            W = new double[n];
+        }
+
+        void Clear(int i) {
+            Light[i] = -1;
+            Sum[i] = 0;
+            M[i] = 0;
+            W[i] = 0;
+        }
+
+        double[] Point(int i) {
+            double[] point = new double[PointSize];
+            System.arraycopy(Sample, i * PointSize, point, 0, PointSize);
+            return point;
+        }
+
+        void Update(int i, int light, double[] point, double weight, double m, CounterRandom rand) {
+            M[i] += m;
+            if (weight <= 0) {
+                return;
+            }
+            Sum[i] += weight;
+            if (rand.nextDouble() * Sum[i] < weight) {
+                Light[i] = light;
+                System.arraycopy(point, 0, Sample, i * PointSize, PointSize);
+            }
+        }
+    }
+}
@@ -58,9 +58,8 @@ class SDFShape extends TransformedShape implements SDF {
         double start = 0.0001;
         double jumpSize = 0.001;
         Box box = this.BoundingBox();
-        var ts = box.Intersect(ray);
-        Double t1 = ts[0];
-        Double t2 = ts[1];
+        double t1 = box.Near(ray);
+        double t2 = box.Far(ray);
 
         if (t2 < t1 || t2 < 0) {
             return Hit.NoHit;
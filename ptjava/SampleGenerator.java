@@ -0,0 +1,196 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2023 akava.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package ptjava;
+
+// Source of sample values in [0, 1), addressed by pixel, sample index and
+// dimension so that every pixel sample sees a well spread point set no matter
+// which thread draws it.
+interface SampleGenerator {
+
+    double Get(int pixel, int index, int dimension);
+
+    static SampleGenerator NewSampleGenerator(SampleMode mode, int samplesPerPixel) {
+        switch (mode) {
+            case SampleModeStratified:
+                return new StratifiedGenerator(samplesPerPixel);
+            case SampleModeHalton:
+                return new HaltonGenerator();
+            case SampleModeSobol:
+                return new SobolGenerator();
+            default:
+                return new RandomGenerator();
+        }
+    }
+
+    // 64-bit finaliser from splitmix64
+    static long Mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+        x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+        return x ^ (x >>> 31);
+    }
+
+    static long Hash(long a, long b, long c) {
+        return Mix(Mix(Mix(a + 0x9e3779b97f4a7c15L) ^ b) ^ c);
+    }
+
+    // top 53 bits as a double in [0, 1)
+    static double ToUnit(long x) {
+        return (x >>> 11) * 0x1p-53;
+    }
+}
+
+class RandomGenerator implements SampleGenerator {
+
+    @Override
+    public double Get(int pixel, int index, int dimension) {
+        return SampleGenerator.ToUnit(SampleGenerator.Hash(pixel, index, dimension));
+    }
+}
+
+// jittered n x n strata over pairs of dimensions, every run of n * n
+// consecutive indices covers each stratum once. The index is the pixel's
+// running sample index, so the strata fill across passes as well as within
+// one, and n never drops below MinStrata for renders of one sample a pass.
+class StratifiedGenerator implements SampleGenerator {
+
+    static final int MinStrata = 4;
+
+    final int n;
+
+    StratifiedGenerator(int samplesPerPixel) {
+        n = Math.max(MinStrata, (int) Math.ceil(Math.sqrt(samplesPerPixel)));
+    }
+
+    @Override
+    public double Get(int pixel, int index, int dimension) {
+        int cells = n * n;
+        int pair = dimension >> 1;
+        long round = SampleGenerator.Hash(pixel, Math.floorDiv(index, cells), ~pair);
+        // stepping n + 1 cells moves one stratum along both axes, so a run
+        // that is cut short is still spread over the pixel
+        long step = (long) Math.floorMod(index, cells) * (n + 1);
+        int cell = (int) Math.floorMod(step + round, (long) cells);
+        int stratum = (dimension & 1) == 0 ? cell % n : cell / n;
+        double jitter = SampleGenerator.ToUnit(SampleGenerator.Hash(pixel, index, dimension));
+        return (stratum + jitter) / n;
+    }
+}
+
+// radical inverse in the first prime bases, rotated per pixel
+// (Cranley-Patterson), dimensions past the table fall back to random
+class HaltonGenerator implements SampleGenerator {
+
+    static final int[] Primes = {
+        2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37, 41, 43, 47, 53,
+        59, 61, 67, 71, 73, 79, 83, 89, 97, 101, 103, 107, 109, 113, 127, 131,
+        137, 139, 149, 151, 157, 163, 167, 173, 179, 181, 191, 193, 197, 199, 211, 223,
+        227, 229, 233, 239, 241, 251, 257, 263, 269, 271, 277, 281, 283, 293, 307, 311
+    };
+
+    @Override
+    public double Get(int pixel, int index, int dimension) {
+        double shift = SampleGenerator.ToUnit(SampleGenerator.Hash(pixel, ~0L, dimension));
+        if (dimension >= Primes.length) {
+            return SampleGenerator.ToUnit(SampleGenerator.Hash(pixel, index, dimension));
+        }
+        double x = RadicalInverse(Primes[dimension], index) + shift;
+        return x >= 1 ? x - 1 : x;
+    }
+
+    static double RadicalInverse(int base, int index) {
+        double inv = 1.0 / base;
+        double f = inv;
+        double result = 0;
+        long i = index & 0xffffffffL;
+        while (i > 0) {
+            result += f * (i % base);
+            i /= base;
+            f *= inv;
+        }
+        return result;
+    }
+}
+
+// Owen-scrambled Sobol points in four dimensions, with a shuffled index for
+// every further group of four (Burley, Practical Hash-based Owen Scrambling)
+class SobolGenerator implements SampleGenerator {
+
+    // primitive polynomial degree, coefficients and initial direction numbers
+    // of the first four Sobol dimensions (Joe and Kuo)
+    static final int[][] Directions = new int[4][32];
+
+    static {
+        int[] s = {0, 1, 2, 3};
+        int[] a = {0, 0, 1, 1};
+        int[][] m = {{}, {1}, {1, 3}, {1, 3, 1}};
+
+        for (int i = 0; i < 32; i++) {
+            Directions[0][i] = 1 << (31 - i);
+        }
+
+        for (int d = 1; d < 4; d++) {
+            int[] v = Directions[d];
+            for (int i = 0; i < 32; i++) {
+                if (i < s[d]) {
+                    v[i] = m[d][i] << (31 - i);
+                } else {
+                    v[i] = v[i - s[d]] ^ (v[i - s[d]] >>> s[d]);
+                    for (int k = 1; k < s[d]; k++) {
+                        v[i] ^= ((a[d] >>> (s[d] - 1 - k)) & 1) * v[i - k];
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public double Get(int pixel, int index, int dimension) {
+        int seed = (int) SampleGenerator.Hash(pixel, dimension >> 2, 0x50b01L);
+        int i = scramble(index, seed);
+        int x = scramble(sobol(i, dimension & 3), (int) SampleGenerator.Mix(seed + dimension));
+        return (x & 0xffffffffL) * 0x1p-32;
+    }
+
+    static int sobol(int index, int dimension) {
+        int x = 0;
+        for (int bit = 0; index != 0; bit++, index >>>= 1) {
+            if ((index & 1) != 0) {
+                x ^= Directions[dimension][bit];
+            }
+        }
+        return x;
+    }
+
+    // nested uniform scramble via the Laine-Karras hash on reversed bits
+    static int scramble(int x, int seed) {
+        x = Integer.reverse(x);
+        x += seed;
+        x ^= x * 0x6c50b47c;
+        x ^= x * 0xb82f1e52;
+        x ^= x * 0xc7afe638;
+        x ^= x * 0x8d22f6e6;
+        return Integer.reverse(x);
+    }
+}
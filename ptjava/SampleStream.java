@@ -0,0 +1,58 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2023 akava.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package ptjava;
+
+// Cursor over the dimensions of one pixel sample, each call to Next takes
+// the following dimension in the order the path consumes them.
+class SampleStream {
+
+    SampleGenerator Generator;
+    int Pixel;
+    int Index;
+    int Dimension;
+    // same pixel sample, for the choices outside the sequence
+    CounterRandom Random;
+    // what the camera ray hit, left for the denoiser's feature buffers
+    Hit.HitInfo First;
+    double FirstT;
+    // hit of the next ray the path traces when it is known already, from
+    // the primary hit cache or an irradiance gather
+    Hit Primary;
+    // the path gathers an irradiance record and must not read the cache
+    boolean Gathering;
+
+    SampleStream(SampleGenerator generator, int pixel, int index) {
+        this.Generator = generator;
+        this.Pixel = pixel;
+        this.Index = index;
+        this.Dimension = 0;
+        this.Random = new CounterRandom(pixel, index);
+        this.FirstT = Hit.INF;
+    }
+
+    double Next() {
+        return Generator.Get(Pixel, Index, Dimension++);
+    }
+}
@@ -25,7 +25,9 @@
 package ptjava;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
 class Scene {
@@ -37,30 +39,114 @@ class Scene {
     List<IShape> lightList = new ArrayList<>();
     IShape[] Lights = new IShape[]{};
     IShape[] Shapes = new IShape[]{};
-    Tree tree;
+    Accelerator tree;
+    LightTree lightTree;
+    AliasTable lightPowers;
+    EnvironmentMap environment;
+    AccelMode accelMode = AccelMode.AccelModeBVH;
     AtomicInteger rays = new AtomicInteger(0);
+    // changes whenever shapes are added or the accelerator is rebuilt, so
+    // that results cached over the scene can tell they are stale
+    int Version;
 
     Scene() {
     }
 
     public void Compile() {
+        // the shapes are compiled with the accelerator, later passes find both built
+        if (tree == null) {
+            compileShapes();
+            tree = Accelerator.NewAccelerator(Shapes, accelMode);
+            System.out.println(tree.Stats());
+            Version++;
+        }
+
+        if (lightTree == null || lightTree.Lights != Lights) {
+            lightTree = LightTree.NewLightTree(Lights);
+            double[] power = new double[Lights.length];
+            for (int i = 0; i < Lights.length; i++) {
+                power[i] = lightPower(Lights[i]);
+            }
+            lightPowers = AliasTable.NewAliasTable(power);
+        }
+
+        if (Texture == null) {
+            environment = null;
+        } else if (environment == null || environment.Texture != Texture || environment.TextureAngle != TextureAngle) {
+            environment = EnvironmentMap.NewEnvironmentMap(Texture, TextureAngle);
+        }
+    }
+
+    // instances share their mesh, so each underlying shape is compiled once
+    void compileShapes() {
+        Map<IShape, Boolean> seen = new IdentityHashMap<>();
+        List<IShape> targets = new ArrayList<>();
         for (IShape shape : Shapes) {
             if (shape != null) {
-                shape.Compile();
+                IShape target = applyAccelMode(shape);
+                if (seen.put(target, Boolean.TRUE) == null) {
+                    targets.add(target);
+                }
             }
         }
-        if (tree == null) {
-            tree = new Tree(Shapes);
+
+        long start = System.nanoTime();
+        targets.parallelStream().forEach(target -> {
+            long t = System.nanoTime();
+            target.Compile();
+            if (target instanceof Mesh || target instanceof SphericalHarmonic) {
+                System.out.printf("Compiled %s in %d ms%n", target.getClass().getSimpleName(), (System.nanoTime() - t) / 1000000);
+            }
+        });
+        System.out.printf("Compiled %d shapes in %d ms%n", targets.size(), (System.nanoTime() - start) / 1000000);
+    }
+
+    // emitted power of a light, emittance times mean colour times surface area
+    static double lightPower(IShape light) {
+        Box box = light.BoundingBox();
+        Material material = Material.MaterialAt(light, box.Center());
+        Colour c = material.Color;
+        double area;
+        if (light instanceof Emitter) {
+            area = ((Emitter) light).Area();
+        } else if (light instanceof Sphere) {
+            double r = ((Sphere) light).Radius;
+            area = 4 * Math.PI * r * r;
+        } else {
+            Vector s = box.Size();
+            area = 2 * (s.getX() * s.getY() + s.getY() * s.getZ() + s.getZ() * s.getX());
+        }
+        return material.Emittance * (c.r + c.g + c.b) / 3 * area;
+    }
+
+    public void SetAccelMode(AccelMode am) {
+        this.accelMode = am;
+        this.tree = null;
+    }
+
+    // meshes that have not been compiled yet follow the scene's accelerator choice,
+    // returns the shape that actually gets compiled
+    IShape applyAccelMode(IShape shape) {
+        while (shape instanceof TransformedShape && ((TransformedShape) shape).Shape != null) {
+            shape = ((TransformedShape) shape).Shape;
+        }
+        if (shape instanceof Mesh) {
+            Mesh mesh = (Mesh) shape;
+            if (mesh.tree == null) {
+                mesh.accelMode = accelMode;
+            }
         }
+        return shape;
     }
 
     void Add(IShape shape) {
         shapeList.add(shape);
         if (shape.MaterialAt(new Vector()).Emittance > 0) {
             lightList.add(shape);
-            Lights = lightList.toArray(Shapes);
+            Lights = lightList.toArray(new IShape[0]);
         }
         Shapes = shapeList.toArray(Shapes);
+        Version++;
     }
 
     void Add(List<IShape> shapes) {
@@ -77,4 +163,9 @@ class Scene {
         rays.incrementAndGet();
         return tree.Intersect(r);
     }
+
+    boolean Occluded(Ray r, double maxT) {
+        rays.incrementAndGet();
+        return tree.Occluded(r, maxT);
+    }
 }
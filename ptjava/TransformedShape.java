@@ -30,6 +30,8 @@ class TransformedShape implements IShape {
     IShape Shape;
     Matrix Matrix;
     Matrix Inverse;
+    Matrix NormalMatrix;
+    Box box;
 
     TransformedShape() {}
     
@@ -37,11 +39,13 @@ class TransformedShape implements IShape {
         Shape = s;        
         Matrix = m;
         Inverse = m.Inverse();
+        NormalMatrix = Inverse.Transpose();
     }
 
     @Override
     public void Compile() {
         Shape.Compile();
+        box = Matrix.MulBox(Shape.BoundingBox());
     }
     
     static IShape NewTransformedShape(IShape s, Matrix m) {
@@ -50,11 +54,23 @@ class TransformedShape implements IShape {
     
     @Override
     public Box BoundingBox() {
-        return Matrix.MulBox(Shape.BoundingBox());
+        if (box == null) {
+            box = Matrix.MulBox(Shape.BoundingBox());
+        }
+        return box;
     }
 
+    // the ray is only moved into the instance's space once it reaches the
+    // world box, shading is left to Info so rejected candidates stay cheap
     @Override
     public Hit Intersect(Ray r) {
+        Box b = BoundingBox();
+        double tmin = b.Near(r);
+        double tmax = b.Far(r);
+        if (tmax < tmin || tmax <= 0) {
+            return Hit.NoHit;
+        }
+
         var shapeRay = Inverse.MulRay(r);
         var hit = Shape.Intersect(shapeRay);
 
@@ -63,12 +79,55 @@ class TransformedShape implements IShape {
             return hit;
         }
 
-        var shape = hit.Shape;
-        var shapePosition = shapeRay.Position(hit.T);
-        var shapeNormal = shape.NormalAt(shapePosition);
+        var position = Matrix.MulPosition(shapeRay.Position(hit.T));
+        var result = new Hit(hit.Shape, position.Sub(r.Origin).Length(), null);
+        result.Instance = this;
+        result.Local = hit;
+        result.LocalRay = shapeRay;
+        return result;
+    }
+
+    @Override
+    public boolean Occluded(Ray r, double maxT) {
+        if (Shape == null) {
+            // primitives extend this class without wrapping a shape
+            return Intersect(r).T < maxT;
+        }
+
+        Box b = BoundingBox();
+        double tmin = b.Near(r);
+        double tmax = b.Far(r);
+        if (tmax < tmin || tmax <= 0 || tmin >= maxT) {
+            return false;
+        }
+
+        // the local ray is normalised, so carry the limit over as a point
+        var shapeRay = Inverse.MulRay(r);
+        var limit = Inverse.MulPosition(r.Position(maxT)).Sub(shapeRay.Origin).Length();
+        return Shape.Occluded(shapeRay, limit);
+    }
+
+    HitInfo Info(Hit hit) {
+        var shapeRay = hit.LocalRay;
+        var local = hit.Local;
+        var shape = local.Shape;
+        Vector shapePosition, shapeNormal;
+        Material material;
+
+        if (local.Instance != null || local.Triangles != null) {
+            // nested instance or packed mesh, its own info is already in this shape's space
+            var info = local.Info(shapeRay);
+            shapePosition = info.Position;
+            shapeNormal = info.Inside ? info.Normal.Negate() : info.Normal;
+            material = info.material;
+        } else {
+            shapePosition = shapeRay.Position(local.T);
+            shapeNormal = shape.NormalAt(shapePosition);
+            material = Material.MaterialAt(shape, shapePosition);
+        }
+
         var position = Matrix.MulPosition(shapePosition);
-        var normal = Inverse.Transpose().MulDirection(shapeNormal);
-        var material = Material.MaterialAt(shape, shapePosition);
+        var normal = NormalMatrix.MulDirection(shapeNormal);
         var inside = false;
 
         if(shapeNormal.Dot(shapeRay.Direction) > 0)
@@ -78,10 +137,7 @@ class TransformedShape implements IShape {
         }
 
         var ray = new Ray(position, normal);
-        var info = new HitInfo(shape, position, normal, ray, material, inside);
-        hit.T = position.Sub(r.Origin).Length();
-        hit.HitInfo = info;
-        return hit;
+        return new HitInfo(shape, position, normal, ray, material, inside);
     }
 
     @Override
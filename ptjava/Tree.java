@@ -26,14 +26,21 @@ package ptjava;
 
 import static ptjava.Box.BoxForShapes;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.Collections;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
 
-class Tree {
+class Tree implements Accelerator {
+
+    // nodes with at least this many shapes are split on the fork-join pool
+    static final int ParallelThreshold = 2048;
 
     public Box Box;
     public Node Root;
+    long BuildTime;
 
     public Tree() {
     }
@@ -45,26 +52,31 @@ class Tree {
 
     public Tree(IShape[] shapes) {
         System.out.println("Building k-d tree: " + shapes.length + "\n");
+        long start = System.nanoTime();
         Box box = BoxForShapes(shapes);
         Node node = new Node(Axis.AxisNone, 0, shapes, null, null);
         node.Split(0);
         Box = box;
         Root = node;
+        BuildTime = System.nanoTime() - start;
     }
 
     static Tree NewTree(IShape[] shapes) {
         System.out.println("Building k-d tree: " + shapes.length);
+        long start = System.nanoTime();
         var box = BoxForShapes(shapes);
         var node = Node.NewNode(shapes);
         node.Split(0);
-        return new Tree(box, node);
+        var tree = new Tree(box, node);
+        tree.BuildTime = System.nanoTime() - start;
+        return tree;
     }
 
 
+    @Override
     public Hit Intersect(Ray r) {
-        var tm = Box.Intersect(r);
-        double tmin = tm[0];
-        double tmax = tm[1];
+        double tmin = Box.Near(r);
+        double tmax = Box.Far(r);
 
         if (tmax < tmin || tmax <= 0) {
             return Hit.NoHit;
@@ -73,6 +85,38 @@ class Tree {
         return this.Root.Intersect(r, tmin, tmax);
     }
 
+    @Override
+    public boolean Occluded(Ray r, double maxT) {
+        double tmin = Box.Near(r);
+        double tmax = Box.Far(r);
+
+        if (tmax < tmin || tmax <= 0 || tmin >= maxT) {
+            return false;
+        }
+
+        return this.Root.Occluded(r, tmin, Math.min(tmax, maxT), maxT);
+    }
+
+    static IntStream range(int n, boolean parallel) {
+        IntStream range = IntStream.range(0, n);
+        return parallel ? range.parallel() : range;
+    }
+
+    @Override
+    public String Stats() {
+        int[] counts = new int[4];
+        double cost = 0;
+        if (Root != null && Box.Min != null) {
+            double[] bounds = {Box.Min.getX(), Box.Min.getY(), Box.Min.getZ(),
+                               Box.Max.getX(), Box.Max.getY(), Box.Max.getZ()};
+            double rootArea = BVH.area(bounds, 0);
+            cost = Root.Cost(bounds, 0, counts);
+            cost = rootArea > 0 ? cost / rootArea : 0;
+        }
+        return String.format("k-d tree: %d nodes, %d leaves, depth %d, %d shape references, SAH cost %.2f, built in %d ms",
+                counts[0], counts[1], counts[2], counts[3], cost, BuildTime / 1000000);
+    }
+
     public class Node {
 
         Axis Axis_;
@@ -103,28 +147,24 @@ class Tree {
             return new Tree().new Node(Axis.AxisNone, 0, shapes, null, null);
         }
 
-        IShape[][] Partition(AtomicInteger size, Axis axis, double point) {
+        // lo/hi hold each shape's bounding box as x, y, z triples
+        IShape[][] Partition(IShape[] shapes, double[] lo, double[] hi, int axis, double point) {
             List<IShape> left = new ArrayList<>();
             List<IShape> right = new ArrayList<>();
-            
-            for (IShape shape : Shapes) {
-                if (shape != null) {
-                    Box box = shape.BoundingBox();
-                    boolean[] lr = box.Partition(axis, point);
 
-                    if (lr[0]) {
-                        left.add(shape);
-                    }
+            for (int i = 0; i < shapes.length; i++) {
+                if (lo[i * 3 + axis] <= point) {
+                    left.add(shapes[i]);
+                }
 
-                    if (lr[1]) {
-                        right.add(shape);
-                    }
+                if (hi[i * 3 + axis] >= point) {
+                    right.add(shapes[i]);
                 }
             }
-            
+
             IShape[] leftp = left.toArray(new IShape[0]);
             IShape[] rightp = right.toArray(new IShape[0]);
-            return new IShape[][]{leftp, rightp}; 
+            return new IShape[][]{leftp, rightp};
         }
 
         public Hit Intersect(Ray r, double tmin, double tmax) {
@@ -136,16 +176,16 @@ class Tree {
                 case AxisNone:
                     return IntersectShapes(r);
                 case AxisX:
-                    tsplit = (Point - r.Origin.getX()) / r.Direction.getX();
-                    leftFirst = (r.Origin.getX() < Point) || (r.Origin.getX() == Point && r.Direction.getX() <= 0);
+                    tsplit = (Point - r.OX) * r.InvX;
+                    leftFirst = (r.OX < Point) || (r.OX == Point && r.InvX <= 0);
                     break;
                 case AxisY:
-                    tsplit = (Point - r.Origin.getY()) / r.Direction.getY();
-                    leftFirst = (r.Origin.getY() < Point) || (r.Origin.getY() == Point && r.Direction.getY() <= 0);
+                    tsplit = (Point - r.OY) * r.InvY;
+                    leftFirst = (r.OY < Point) || (r.OY == Point && r.InvY <= 0);
                     break;
                 case AxisZ:
-                    tsplit = (Point - r.Origin.getZ()) / r.Direction.getZ();
-                    leftFirst = (r.Origin.getZ() < Point) || (r.Origin.getZ() == Point && r.Direction.getZ() <= 0);
+                    tsplit = (Point - r.OZ) * r.InvZ;
+                    leftFirst = (r.OZ < Point) || (r.OZ == Point && r.InvZ <= 0);
                     break;
                 default:
                     break;
@@ -168,6 +208,67 @@ class Tree {
             }       
         }
 
+        // same traversal as Intersect, but returns at the first blocker
+        boolean Occluded(Ray r, double tmin, double tmax, double maxT) {
+            if (Axis_ == Axis.AxisNone) {
+                for (IShape shape : Shapes) {
+                    if (shape.Occluded(r, maxT)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            double tsplit;
+            boolean leftFirst;
+
+            switch (Axis_) {
+                case AxisX:
+                    tsplit = (Point - r.OX) * r.InvX;
+                    leftFirst = (r.OX < Point) || (r.OX == Point && r.InvX <= 0);
+                    break;
+                case AxisY:
+                    tsplit = (Point - r.OY) * r.InvY;
+                    leftFirst = (r.OY < Point) || (r.OY == Point && r.InvY <= 0);
+                    break;
+                default:
+                    tsplit = (Point - r.OZ) * r.InvZ;
+                    leftFirst = (r.OZ < Point) || (r.OZ == Point && r.InvZ <= 0);
+                    break;
+            }
+
+            Node first = leftFirst ? Left : Right;
+            Node second = leftFirst ? Right : Left;
+
+            if (tsplit > tmax || tsplit <= 0) {
+                return first.Occluded(r, tmin, tmax, maxT);
+            } else if (tsplit < tmin) {
+                return second.Occluded(r, tmin, tmax, maxT);
+            }
+            return first.Occluded(r, tmin, tsplit, maxT) || second.Occluded(r, tsplit, tmax, maxT);
+        }
+
+        // counts holds nodes, leaves, max depth and shape references
+        double Cost(double[] bounds, int depth, int[] counts) {
+            counts[0]++;
+            counts[2] = Math.max(counts[2], depth);
+            double a = BVH.area(bounds, 0);
+
+            if (Axis_ == Axis.AxisNone) {
+                int n = Shapes == null ? 0 : Shapes.length;
+                counts[1]++;
+                counts[3] += n;
+                return a * BVH.IntersectCost * n;
+            }
+
+            int axis = Axis_.ordinal() - 1;
+            double[] left = bounds.clone();
+            double[] right = bounds.clone();
+            left[axis + 3] = Math.min(Point, bounds[axis + 3]);
+            right[axis] = Math.max(Point, bounds[axis]);
+            return a * BVH.TraversalCost + Left.Cost(left, depth + 1, counts) + Right.Cost(right, depth + 1, counts);
+        }
+
         public Hit IntersectShapes(Ray r) {
             Hit hit = Hit.NoHit;
             for (IShape shape : Shapes) {
@@ -179,102 +280,94 @@ class Tree {
             return hit;
         }
 
-        public double Median(List<Double> list) {
-            int middle = list.size() / 2;
+        public double Median(double[] sorted) {
+            int middle = sorted.length / 2;
 
-            if (list.size() == 0) {
+            if (sorted.length == 0) {
                 return 0;
-            } else if (list.size() % 2 == 1) {
-                return list.get(middle);
+            } else if (sorted.length % 2 == 1) {
+                return sorted[middle];
             } else {
-                return (list.get(middle - 1) + list.get(middle)) / 2.0;
+                return (sorted[middle - 1] + sorted[middle]) / 2.0;
             }
         }
 
-        public AtomicInteger PartitionScore(Axis axis, double point) {
-            AtomicInteger left = new AtomicInteger(0);
-            AtomicInteger right = new AtomicInteger(0);
-            for (IShape shape : this.Shapes) {
-                if (shape != null) {
-                    Box box = shape.BoundingBox();
-                    boolean[] lr = box.Partition(axis, point);
-                    if (lr[0]) {
-                        left.incrementAndGet();
-                    }
-                    if (lr[1]) {
-                        right.incrementAndGet();
-                    }
-                }
-            }
-            return left.get() >= right.get() ? left : right;
-        }  
+        int PartitionScore(double[] lo, double[] hi, int axis, double point, boolean parallel) {
+            IntPredicate inLeft = i -> lo[i * 3 + axis] <= point;
+            IntPredicate inRight = i -> hi[i * 3 + axis] >= point;
+            int n = lo.length / 3;
+            long left = range(n, parallel).filter(inLeft).count();
+            long right = range(n, parallel).filter(inRight).count();
+            return (int) Math.max(left, right);
+        }
 
         public void Split(int depth) {
             if (this.Shapes.length < 8) {
                 return;
             }
 
-            List<Double> xs = new ArrayList<>();
-            List<Double> ys = new ArrayList<>();
-            List<Double> zs = new ArrayList<>();
-
-            for (IShape shape : this.Shapes) {
-                if (shape != null) {
-                    Box box = shape.BoundingBox();
-                    xs.add(box.Min.getX());
-                    xs.add(box.Max.getX());
-                    ys.add(box.Min.getY());
-                    ys.add(box.Max.getY());
-                    zs.add(box.Min.getZ());
-                    zs.add(box.Max.getZ());
+            IShape[] shapes = Arrays.stream(Shapes).filter(Objects::nonNull).toArray(IShape[]::new);
+            int n = shapes.length;
+            boolean parallel = n >= ParallelThreshold;
+
+            // bounding boxes of transformed shapes are expensive, so gather them once
+            double[] lo = new double[n * 3];
+            double[] hi = new double[n * 3];
+            range(n, parallel).forEach(i -> {
+                Box box = shapes[i].BoundingBox();
+                lo[i * 3] = box.Min.getX();
+                lo[i * 3 + 1] = box.Min.getY();
+                lo[i * 3 + 2] = box.Min.getZ();
+                hi[i * 3] = box.Max.getX();
+                hi[i * 3 + 1] = box.Max.getY();
+                hi[i * 3 + 2] = box.Max.getZ();
+            });
+
+            double[][] coords = new double[3][n * 2];
+            double[] medians = new double[3];
+            range(3, parallel).forEach(a -> {
+                double[] c = coords[a];
+                for (int i = 0; i < n; i++) {
+                    c[i * 2] = lo[i * 3 + a];
+                    c[i * 2 + 1] = hi[i * 3 + a];
                 }
-            }
-
-            Collections.sort(xs);
-            Collections.sort(ys);
-            Collections.sort(zs);
-           
-            double mx = Median(xs);
-            double my = Median(ys);
-            double mz = Median(zs);
-
-            AtomicInteger best = new AtomicInteger((int)(Shapes.length * 0.85));
-            Axis bestAxis = Axis.AxisNone;
-            double bestPoint = 0.0;
-
-            var sx = PartitionScore(Axis.AxisX, mx);
-            if (sx.get() < best.get()) {
-                best = sx;
-                bestAxis = Axis.AxisX;
-                bestPoint = mx;
-            }
+                if (parallel) {
+                    Arrays.parallelSort(c);
+                } else {
+                    Arrays.sort(c);
+                }
+                medians[a] = Median(c);
+            });
 
-            var sy = PartitionScore(Axis.AxisY, my);
-            if (sy.get() < best.get()) {
-                best = sy;
-                bestAxis = Axis.AxisY;
-                bestPoint = my;
-            }
+            int[] scores = range(3, parallel).map(a -> PartitionScore(lo, hi, a, medians[a], parallel)).toArray();
 
-            var sz = PartitionScore(Axis.AxisZ, mz);
-            if (sz.get() < best.get()) {
-                best = sz;
-                bestAxis = Axis.AxisZ;
-                bestPoint = mz;
+            int best = (int) (Shapes.length * 0.85);
+            int bestAxis = -1;
+            for (int a = 0; a < 3; a++) {
+                if (scores[a] < best) {
+                    best = scores[a];
+                    bestAxis = a;
+                }
             }
 
-            if (bestAxis == Axis.AxisNone) {
+            if (bestAxis < 0) {
                 return;
             }
-        
-            var partitions = Partition(best, bestAxis, bestPoint);
-            Axis_ = bestAxis;
+
+            double bestPoint = medians[bestAxis];
+            var partitions = Partition(shapes, lo, hi, bestAxis, bestPoint);
+            Axis_ = Axis.values()[bestAxis + 1];
             Point = bestPoint;
             Left = NewNode(partitions[0]);
             Right = NewNode(partitions[1]);
-            Left.Split(depth + 1);
-            Right.Split(depth + 1);
-            Shapes = null; 
+            if (parallel) {
+                ForkJoinTask.invokeAll(ForkJoinTask.adapt(() -> Left.Split(depth + 1)),
+                                       ForkJoinTask.adapt(() -> Right.Split(depth + 1)));
+            } else {
+                Left.Split(depth + 1);
+                Right.Split(depth + 1);
+            }
+            Shapes = null;
         }
     }    
 }
@@ -26,7 +26,7 @@ package ptjava;
 
 import java.util.Objects;
 
-class Triangle implements IShape {
+class Triangle implements IShape, Emitter {
 
     public Material Material;
     public Vector V1, V2, V3;
@@ -93,6 +93,16 @@ class Triangle implements IShape {
     @Override
     public void Compile() { }
 
+    @Override
+    public SurfacePoint SampleSurface(double u, double v) {
+        double s = Math.sqrt(u);
+        double b1 = 1 - s;
+        double b2 = v * s;
+        Vector p = V1.MulScalar(b1).Add(V2.MulScalar(b2)).Add(V3.MulScalar(1 - b1 - b2));
+        Vector n = V2.Sub(V1).Cross(V3.Sub(V1)).Normalize();
+        return new SurfacePoint(this, p, n);
+    }
+
     @Override
     public Box BoundingBox() {
         Vector min = V1.Min(V2).Min(V3);
@@ -201,7 +211,8 @@ class Triangle implements IShape {
         return n.Normalize();
     }
 
-    double Area() {
+    @Override
+    public double Area() {
         Vector e1 = V2.Sub(V1);
         Vector e2 = V3.Sub(V1);
         Vector n = e1.Cross(e2);
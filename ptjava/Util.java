@@ -7,7 +7,6 @@ import java.nio.file.Paths;
 import java.time.Duration;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ThreadLocalRandom;
 
 
 public class Util {
@@ -31,7 +30,7 @@ public class Util {
         return radians * 180 / Math.PI;
     }
 
-    public static Vector Cone(Vector direction, double theta, double u, double v, ThreadLocalRandom rand) {
+    public static Vector Cone(Vector direction, double theta, double u, double v, CounterRandom rand) {
         if (theta < EPS) {
             return direction;
         }
@@ -40,8 +39,9 @@ public class Util {
         var m2 = Math.cos(theta);
         var a = v * 2 * Math.PI;
         var q = Vector.RandomUnitVector(rand);
-        var s = direction.Cross(q);
-        var t = direction.Cross(s);
+        // a unit frame, otherwise the spread shrinks with the random q
+        var s = direction.Cross(q).Normalize();
+        var t = direction.Cross(s).Normalize();
         var d = new Vector();
         d = d.Add(s.MulScalar(m1 * Math.cos(a)));
         d = d.Add(t.MulScalar(m1 * Math.sin(a)));
@@ -1,6 +1,5 @@
 package ptjava;
 
-import java.util.concurrent.ThreadLocalRandom;
 import jdk.incubator.vector.DoubleVector;
 import jdk.incubator.vector.VectorSpecies;
 import jdk.incubator.vector.VectorOperators;
@@ -51,7 +50,7 @@ public class Vector {
         vec = DoubleVector.fromArray(SPECIES, new double[]{x, y, z, 0.0}, 0);
     }
 
-    public static Vector RandomUnitVector(ThreadLocalRandom rnd) {    
+    public static Vector RandomUnitVector(CounterRandom rnd) {    
         double z = rnd.nextDouble() * 2.0 - 1.0;
         double a = rnd.nextDouble() * 2.0 * Math.PI;
         double r = Math.sqrt(1.0 - z * z);
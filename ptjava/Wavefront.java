@@ -0,0 +1,319 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2023 akava.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package ptjava;
+
+import java.util.stream.IntStream;
+import ptjava.DefaultSampler.LightSample;
+import ptjava.Hit.HitInfo;
+
+// Path tracer that moves a batch of paths through one stage at a time
+// (generate, extend, shade, shadow) instead of recursing per sample. Path
+// state is kept in parallel arrays and every stage runs over the whole batch
+// on the fork-join pool. It follows the DefaultSampler settings; the diffuse
+// and specular split of the specular modes is taken stochastically, which
+// gives the same expected value with one path per stratum.
+class Wavefront {
+
+    static final int BatchSize = 1 << 16;
+
+    DefaultSampler Sampler;
+    long GenerateTime;
+    long ExtendTime;
+    long ShadeTime;
+    long ShadowTime;
+    long Paths;
+
+    // per path state, indexed by path within the batch
+    Ray[] ray;
+    Hit[] hit;
+    HitInfo[] info;
+    SampleStream[] stream;
+    double[] tr, tg, tb;
+    double[] lr, lg, lb;
+    // pdf of the bounce that produced ray, weights the emission it finds
+    double[] pdf;
+    boolean[] alive;
+    int[] active;
+
+    // shadow connections, one per path: the hit to take light samples at, the
+    // bounce they are weighted against and the throughput there; the light
+    // samples themselves are drawn and traced one after another by the shadow
+    // stage, so every light the light mode asks for costs no memory
+    Ray[] shadowNormal;
+    Ray.BounceResult[] shadowBounce;
+    double[] sr, sg, sb;
+
+    Wavefront(DefaultSampler sampler) {
+        this.Sampler = sampler;
+    }
+
+    static Wavefront NewWavefront(DefaultSampler sampler) {
+        return new Wavefront(sampler);
+    }
+
+    void allocate(int paths) {
+        if (ray == null || ray.length != paths) {
+            ray = new Ray[paths];
+            hit = new Hit[paths];
+            info = new HitInfo[paths];
+            stream = new SampleStream[paths];
+            tr = new double[paths];
+            tg = new double[paths];
+            tb = new double[paths];
+            lr = new double[paths];
+            lg = new double[paths];
+            lb = new double[paths];
+            pdf = new double[paths];
+            alive = new boolean[paths];
+            active = new int[paths];
+            shadowNormal = new Ray[paths];
+            shadowBounce = new Ray.BounceResult[paths];
+            sr = new double[paths];
+            sg = new double[paths];
+            sb = new double[paths];
+        }
+    }
+
+    // renders spp samples for every pixel and adds their mean to the buffer
+    void Render(Scene scene, Camera camera, Buffer buf, int spp, SampleGenerator generator, int[] sampleIndex,
+                PrimaryHits primary) {
+        GenerateTime = ExtendTime = ShadeTime = ShadowTime = Paths = 0;
+        int w = buf.W;
+        int h = buf.H;
+        // the first hit is shared by n * n paths, one per stratum
+        int n = Math.max(1, (int) Math.sqrt(Sampler.FirstHitSamples));
+        int group = n * n;
+        int groups = Math.max(1, BatchSize / group);
+        allocate(groups * group);
+
+        long total = (long) w * h * spp;
+        double[] acc = new double[w * h * 3];
+
+        for (long first = 0; first < total; first += groups) {
+            int count = (int) Math.min(groups, total - first);
+            trace(scene, camera, w, h, spp, first, count, n, generator, sampleIndex, primary);
+
+            // sum each camera sample's paths into its pixel
+            long start = first;
+            int p0 = (int) (first / spp);
+            int p1 = (int) ((first + count - 1) / spp);
+            IntStream.rangeClosed(p0, p1).parallel().forEach(p -> {
+                long s0 = Math.max(start, (long) p * spp);
+                long s1 = Math.min(start + count, (long) (p + 1) * spp);
+                for (long s = s0; s < s1; s++) {
+                    int base = (int) (s - start) * group;
+                    Renderer.addFeatures(buf, p % w, p / w, stream[base]);
+                    for (int i = base; i < base + group; i++) {
+                        acc[p * 3] += lr[i] / spp;
+                        acc[p * 3 + 1] += lg[i] / spp;
+                        acc[p * 3 + 2] += lb[i] / spp;
+                    }
+                }
+            });
+        }
+
+        for (int p = 0; p < w * h; p++) {
+            buf.AddSample(p % w, p / w, acc[p * 3], acc[p * 3 + 1], acc[p * 3 + 2]);
+            sampleIndex[p] += spp;
+        }
+    }
+
+    // traces the camera samples first .. first + count - 1 to completion
+    void trace(Scene scene, Camera camera, int w, int h, int spp, long first, int count, int n,
+               SampleGenerator generator, int[] sampleIndex, PrimaryHits primary) {
+        int group = n * n;
+        int paths = count * group;
+        double weight = 1.0 / group;
+        double emissionScale = Sampler.FirstHitSamples / (double) group;
+
+        long t = System.nanoTime();
+        IntStream.range(0, count).parallel().forEach(c -> {
+            int p = (int) ((first + c) / spp);
+            // the camera sample takes the pixel's next index so its dimensions
+            // stay well spread, every path of the group then follows its own
+            // index of the pixel's sequence from the dimensions after the camera's
+            int sample = sampleIndex[p] + (int) ((first + c) % spp);
+            SampleStream eye = new SampleStream(generator, p, sample);
+            Ray r = primary != null ? primary.CastRay(p % w, p / w, sample, eye)
+                    : camera.CastRay(p % w, p / w, w, h, eye);
+            int index = sample * group;
+            for (int i = c * group; i < (c + 1) * group; i++) {
+                stream[i] = new SampleStream(generator, p, index + i - c * group);
+                stream[i].Dimension = eye.Dimension;
+            }
+            stream[c * group].Primary = eye.Primary;
+            for (int i = c * group; i < (c + 1) * group; i++) {
+                ray[i] = r;
+                tr[i] = tg[i] = tb[i] = weight;
+                lr[i] = lg[i] = lb[i] = 0;
+                pdf[i] = 0;
+                alive[i] = true;
+                active[i] = i;
+            }
+        });
+        GenerateTime += System.nanoTime() - t;
+        Paths += paths;
+
+        int activeCount = paths;
+        for (int depth = 0; depth <= Sampler.MaxBounces && activeCount > 0; depth++) {
+            final int d = depth;
+            final int size = activeCount;
+
+            // extend: closest hits, the shared primary ray is traced once per group
+            t = System.nanoTime();
+            if (depth == 0) {
+                IntStream.range(0, count).parallel().forEach(c -> {
+                    Hit hc = DefaultSampler.intersect(scene, ray[c * group], stream[c * group]);
+                    HitInfo ic = hc.Ok() ? hc.Info(ray[c * group]) : null;
+                    stream[c * group].First = ic;
+                    stream[c * group].FirstT = hc.T;
+                    for (int i = c * group; i < (c + 1) * group; i++) {
+                        hit[i] = hc;
+                        info[i] = ic;
+                    }
+                });
+            } else {
+                IntStream.range(0, size).parallel().forEach(k -> {
+                    int i = active[k];
+                    hit[i] = scene.Intersect(ray[i]);
+                    info[i] = hit[i].Ok() ? hit[i].Info(ray[i]) : null;
+                });
+            }
+            ExtendTime += System.nanoTime() - t;
+
+            // shade: emission, environment, light samples and the next bounce
+            t = System.nanoTime();
+            IntStream.range(0, size).parallel().forEach(k -> {
+                shade(scene, active[k], d, n, d == 0 ? emissionScale : 1);
+            });
+            ShadeTime += System.nanoTime() - t;
+
+            // shadow: sample the lights at the queued hits and connect them
+            t = System.nanoTime();
+            IntStream.range(0, size).parallel().forEach(k -> {
+                connect(scene, active[k], d);
+            });
+            ShadowTime += System.nanoTime() - t;
+
+            int[] next = IntStream.range(0, size).map(k -> active[k]).filter(i -> alive[i]).toArray();
+            System.arraycopy(next, 0, active, 0, next.length);
+            activeCount = next.length;
+        }
+    }
+
+    void shade(Scene scene, int i, int depth, int n, double emissionScale) {
+        shadowNormal[i] = null;
+
+        if (!hit[i].Ok()) {
+            Colour c = Sampler.sampleEnvironment(scene, ray[i]);
+            double w = Sampler.environmentWeight(scene, ray[i], pdf[i]);
+            lr[i] += tr[i] * c.r * w;
+            lg[i] += tg[i] * c.g * w;
+            lb[i] += tb[i] * c.b * w;
+            alive[i] = false;
+            return;
+        }
+
+        HitInfo hi = info[i];
+        Material material = hi.material;
+        Colour color = material.Color;
+
+        if (material.Emittance > 0) {
+            double e = material.Emittance * emissionScale * Sampler.emissionWeight(scene, ray[i], hit[i], pdf[i]);
+            lr[i] += tr[i] * color.r * e;
+            lg[i] += tg[i] * color.g * e;
+            lb[i] += tb[i] * color.b * e;
+        }
+
+        double u = stream[i].Next();
+        double v = stream[i].Next();
+        if (depth == 0) {
+            // stratum of this path within its group
+            int stratum = i % (n * n);
+            u = (stratum / n + u) / n;
+            v = (stratum % n + v) / n;
+        }
+
+        var bounce = ray[i].Bounce(hi, u, v, BounceType.BounceTypeAny, stream[i].Random);
+
+        if (bounce.isReflected()) {
+            double tint = material.Tint;
+            tr[i] *= (1 - tint) + tint * color.r;
+            tg[i] *= (1 - tint) + tint * color.g;
+            tb[i] *= (1 - tint) + tint * color.b;
+        } else {
+            tr[i] *= color.r;
+            tg[i] *= color.g;
+            tb[i] *= color.b;
+        }
+
+        if (Sampler.DirectLighting && bounce.getLobe() != Lobe.LobeSpecular) {
+            // the throughput is kept before roulette rescales it for the next bounce
+            shadowNormal[i] = hi.Ray;
+            shadowBounce[i] = bounce;
+            sr[i] = tr[i];
+            sg[i] = tg[i];
+            sb[i] = tb[i];
+        }
+
+        ray[i] = bounce.getRay();
+        pdf[i] = bounce.Pdf(ray[i].Direction);
+        alive[i] = depth < Sampler.MaxBounces;
+
+        if (alive[i] && Sampler.RussianRoulette && depth + 1 >= Sampler.RouletteDepth) {
+            // throughputs start at 1 / (n * n), the survival test works on the path's own scale
+            double q = DefaultSampler.roulette(tr[i] * n * n, tg[i] * n * n, tb[i] * n * n);
+            if (q <= 0 || stream[i].Random.nextDouble() >= q) {
+                alive[i] = false;
+            } else {
+                tr[i] /= q;
+                tg[i] /= q;
+                tb[i] /= q;
+            }
+        }
+    }
+
+    // light samples at the hit shade queued for path i, one for every light
+    // the light mode asks for, traced in turn and added to the path's light
+    void connect(Scene scene, int i, int depth) {
+        if (shadowNormal[i] == null) {
+            return;
+        }
+        boolean last = depth >= Sampler.MaxBounces;
+        for (LightSample ls : Sampler.lightSamples(scene, shadowNormal[i], stream[i])) {
+            if (ls != null && !scene.Occluded(ls.Ray, ls.MaxT)) {
+                double w = DefaultSampler.lightWeight(ls, shadowBounce[i], last);
+                lr[i] += sr[i] * ls.Color.r * w;
+                lg[i] += sg[i] * ls.Color.g * w;
+                lb[i] += sb[i] * ls.Color.b * w;
+            }
+        }
+    }
+
+    String Stats() {
+        return String.format("%d paths, generate %d ms, extend %d ms, shade %d ms, shadow %d ms", Paths,
+                GenerateTime / 1000000, ExtendTime / 1000000, ShadeTime / 1000000, ShadowTime / 1000000);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2023 akava.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package ptjava;
+
+import java.util.Random;
+
+// Rays through the BVH, the k-d tree and a packed mesh, checked against the
+// same shapes tested one by one, and shadow rays checked against the hits.
+public class AcceleratorTest {
+
+    public static void main(String[] args) {
+        Random random = new Random(2);
+        Material material = Material.DiffuseMaterial(Colour.White);
+        Triangle[] triangles = new Triangle[2000];
+        for (int i = 0; i < triangles.length; i++) {
+            Vector c = TransformedShapeTest.point(random, 4);
+            triangles[i] = TransformedShapeTest.triangle(c, c.Add(TransformedShapeTest.point(random, 0.3)),
+                    c.Add(TransformedShapeTest.point(random, 0.3)), material);
+        }
+        IShape[] shapes = new IShape[triangles.length + 200];
+        System.arraycopy(triangles, 0, shapes, 0, triangles.length);
+        for (int i = triangles.length; i < shapes.length; i++) {
+            Vector c = TransformedShapeTest.point(random, 4);
+            if (i % 2 == 0) {
+                shapes[i] = Sphere.NewSphere(c, 0.05 + random.nextDouble() * 0.2, material);
+            } else {
+                shapes[i] = Cube.NewCube(c, c.Add(new Vector(random.nextDouble(), random.nextDouble(), random.nextDouble()).MulScalar(0.3)), material);
+            }
+        }
+
+        Mesh mesh = Mesh.NewMesh(triangles);
+        mesh.Compile();
+        check("BVH", Accelerator.NewAccelerator(shapes, AccelMode.AccelModeBVH), shapes, random);
+        check("k-d tree", Accelerator.NewAccelerator(shapes, AccelMode.AccelModeTree), shapes, random);
+        check("packed mesh", mesh.tree, triangles, random);
+    }
+
+    static void check(String name, Accelerator accelerator, IShape[] shapes, Random random) {
+        int rays = 4000, agree = 0, shadows = 0;
+        for (int i = 0; i < rays; i++) {
+            Vector origin = TransformedShapeTest.point(random, 10);
+            Vector target = TransformedShapeTest.point(random, 4);
+            Ray ray = new Ray(origin, target.Sub(origin).Normalize());
+            double expected = Hit.NoHit.T;
+            for (IShape shape : shapes) {
+                expected = Math.min(expected, shape.Intersect(ray).T);
+            }
+            Hit hit = accelerator.Intersect(ray);
+            if (hit.Ok() == expected < Hit.NoHit.T && (!hit.Ok() || Math.abs(hit.T - expected) < 1e-6 * (1 + expected))) {
+                agree++;
+            }
+
+            // shadow rays end short of the hit or past it, clear of it
+            double maxT = (expected < Hit.NoHit.T ? expected : 20) * (random.nextBoolean() ? 0.99 : 1.01);
+            if (accelerator.Occluded(ray, maxT) == expected < maxT) {
+                shadows++;
+            }
+        }
+        System.out.printf("%s: %d of %d rays agree, %d of %d shadow rays agree%n", name, agree, rays, shadows, rays);
+        if (agree != rays || shadows != rays) {
+            throw new AssertionError(name + " disagrees with testing every shape");
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2023 akava.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package ptjava;
+
+import java.util.Random;
+
+// Indices drawn from alias tables counted against the weights the tables
+// were built from, including zero weights and a table of only zeros.
+public class AliasTableTest {
+
+    public static void main(String[] args) {
+        Random random = new Random(3);
+        double[] skewed = new double[50];
+        for (int i = 0; i < skewed.length; i++) {
+            skewed[i] = i % 7 == 0 ? 0 : Math.pow(random.nextDouble(), 4) * 100;
+        }
+        skewed[17] = 1000;
+        check("skewed", skewed, random);
+        check("one", new double[]{2}, random);
+        check("zeros", new double[]{0, 0, 0, 0}, random);
+    }
+
+    static void check(String name, double[] weights, Random random) {
+        AliasTable table = AliasTable.NewAliasTable(weights);
+        double sum = 0;
+        for (double w : weights) {
+            sum += w;
+        }
+
+        int samples = 2000000;
+        int[] counts = new int[weights.length];
+        for (int i = 0; i < samples; i++) {
+            counts[table.Sample(random.nextDouble())]++;
+        }
+
+        int bad = 0;
+        for (int i = 0; i < weights.length; i++) {
+            double p = sum > 0 ? weights[i] / sum : 1.0 / weights.length;
+            // binomial standard deviation of the count
+            double sigma = Math.sqrt(samples * p * (1 - p));
+            if (Math.abs(table.Pdf(i) - p) > 1e-12 || Math.abs(counts[i] - samples * p) > 5 * sigma + 1e-9) {
+                bad++;
+            }
+        }
+        System.out.printf("%s: %d of %d frequencies off their weights%n", name, bad, weights.length);
+        if (bad > 0) {
+            throw new AssertionError(name + " alias table does not sample its weights");
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2023 akava.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package ptjava;
+
+import java.util.Random;
+
+// The solid angle pdf of an environment map with a small bright sun,
+// integrated over the sphere, and the directions it samples checked against
+// that pdf by estimating the sphere's area with them.
+public class EnvironmentMapTest {
+
+    public static void main(String[] args) {
+        int w = 256, h = 128;
+        Colour[] data = new Colour[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                boolean sun = Math.abs(x - 60) < 3 && Math.abs(y - 30) < 3;
+                data[y * w + x] = sun ? new Colour(400, 380, 350) : new Colour(0.2, 0.3, 0.5 * (1 - y / (double) h));
+            }
+        }
+        EnvironmentMap map = EnvironmentMap.NewEnvironmentMap(new ColorTexture(w, h, data), 0.3);
+
+        // midpoint rule in longitude and latitude, finer than the table's cells
+        int nu = map.W * 4, nv = map.H * 4;
+        double integral = 0;
+        for (int j = 0; j < nv; j++) {
+            double e = (j + 0.5) / nv * Math.PI - Math.PI / 2;
+            for (int i = 0; i < nu; i++) {
+                double a = (i + 0.5) / nu * 2 * Math.PI;
+                Vector d = new Vector(Math.cos(e) * Math.cos(a), Math.sin(e), Math.cos(e) * Math.sin(a));
+                integral += map.Pdf(d) * Math.cos(e) * (Math.PI / nv) * (2 * Math.PI / nu);
+            }
+        }
+
+        Random random = new Random(4);
+        int samples = 1000000;
+        double area = 0;
+        for (int i = 0; i < samples; i++) {
+            area += 1 / map.Pdf(map.Sample(random.nextDouble(), random.nextDouble()));
+        }
+        area /= samples;
+
+        System.out.printf("pdf integrates to %.5f, sampled sphere area %.4f of %.4f%n", integral, area, 4 * Math.PI);
+        if (Math.abs(integral - 1) > 1e-3) {
+            throw new AssertionError("environment map pdf does not integrate to 1");
+        }
+        if (Math.abs(area / (4 * Math.PI) - 1) > 0.01) {
+            throw new AssertionError("environment map samples do not follow its pdf");
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2023 akava.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package ptjava;
+
+// Direct lighting of a floor under a sphere, a quad and an emissive mesh of
+// different powers, estimated with every light mode and checked against
+// paths that only find the lights by bouncing into them.
+public class LightModeTest {
+
+    static final int Rays = 64;
+
+    public static void main(String[] args) {
+        Scene scene = new Scene();
+        scene.Add(Plane.NewPlane(new Vector(0, 0, 0), new Vector(0, 1, 0), Material.DiffuseMaterial(new Colour(0.8, 0.8, 0.8))));
+        scene.Add(Sphere.NewSphere(new Vector(-2, 2, 0), 0.8, Material.LightMaterial(new Colour(1, 0.9, 0.8), 2)));
+        scene.Add(new Quad(new Vector(1, 0.5, -1), new Vector(3, 0.5, -1), new Vector(3, 2.5, -1.5), new Vector(1, 2.5, -1.5),
+                Material.LightMaterial(new Colour(0.4, 0.6, 1), 1)));
+        Material light = Material.LightMaterial(new Colour(0.5, 1, 0.5), 4);
+        Vector n = new Vector(0, -1, 0);
+        Vector uv = new Vector();
+        Vector a = new Vector(-1, 3, 1), b = new Vector(1, 3, 1), c = new Vector(1, 3, 2), d = new Vector(-1, 3, 2);
+        scene.Add(Mesh.NewMesh(new Triangle[]{
+            Triangle.NewTriangle(a, b, c, n, n, n, uv, uv, uv, light),
+            Triangle.NewTriangle(a, c, d, n, n, n, uv, uv, uv, light)}));
+        scene.Compile();
+
+        DefaultSampler path = new DefaultSampler(1, 1);
+        path.DirectLighting = false;
+        double[] reference = estimate(scene, path, 8192);
+
+        boolean ok = true;
+        for (LightMode mode : new LightMode[]{LightMode.LightModeAll, LightMode.LightModeTree, LightMode.LightModePower}) {
+            DefaultSampler direct = DefaultSampler.NewDirectSampler();
+            direct.SetLightMode(mode);
+            double[] result = estimate(scene, direct, 1024);
+            double sigma = Math.sqrt(result[1] * result[1] + reference[1] * reference[1]);
+            System.out.printf("%s: %.5f against %.5f, %.1f sigma%n", mode, result[0], reference[0], (result[0] - reference[0]) / sigma);
+            ok &= Math.abs(result[0] - reference[0]) < 4 * sigma;
+        }
+        if (!ok) {
+            throw new AssertionError("light sampling does not converge to the path traced reference");
+        }
+    }
+
+    // mean brightness of the floor over the rays and its standard error
+    static double[] estimate(Scene scene, DefaultSampler sampler, int samples) {
+        SampleGenerator generator = SampleGenerator.NewSampleGenerator(SampleMode.SampleModeRandom, samples);
+        Vector eye = new Vector(0, 3, 6);
+        double mean = 0, variance = 0;
+        for (int i = 0; i < Rays; i++) {
+            Vector target = new Vector(i % 8 - 3.5, 0, i / 8 - 3.5);
+            Ray ray = new Ray(eye, target.Sub(eye).Normalize());
+            double sum = 0, sum2 = 0;
+            for (int j = 0; j < samples; j++) {
+                Colour c = sampler.Sample(scene, ray, new SampleStream(generator, i, j));
+                double l = (c.r + c.g + c.b) / 3;
+                sum += l;
+                sum2 += l * l;
+            }
+            double m = sum / samples;
+            mean += m / Rays;
+            variance += (sum2 / samples - m * m) / (samples - 1) / ((double) Rays * Rays);
+        }
+        return new double[]{mean, Math.sqrt(variance)};
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2023 akava.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package ptjava;
+
+import java.util.Random;
+
+// Rays through a mesh nested in two rotated and scaled instances, checked
+// against the same triangles moved into world space and tested one by one.
+public class TransformedShapeTest {
+
+    public static void main(String[] args) {
+        Random random = new Random(1);
+        Material material = Material.DiffuseMaterial(Colour.White);
+        Triangle[] local = new Triangle[300];
+        for (int i = 0; i < local.length; i++) {
+            Vector c = point(random, 1);
+            local[i] = triangle(c, c.Add(point(random, 0.2)), c.Add(point(random, 0.2)), material);
+        }
+
+        Matrix inner = Matrix.Identity.Scale(new Vector(1, 2, 0.5)).Rotate(new Vector(1, 1, 0).Normalize(), Util.Radians(130));
+        Matrix outer = Matrix.Identity.Rotate(new Vector(0, 0, 1), Util.Radians(-70)).Scale(new Vector(1.5, 1, 1));
+        IShape shape = TransformedShape.NewTransformedShape(TransformedShape.NewTransformedShape(Mesh.NewMesh(local), inner), outer);
+        shape.Compile();
+
+        Triangle[] reference = new Triangle[local.length];
+        for (int i = 0; i < local.length; i++) {
+            Triangle t = local[i];
+            reference[i] = triangle(outer.MulPosition(inner.MulPosition(t.V1)), outer.MulPosition(inner.MulPosition(t.V2)),
+                    outer.MulPosition(inner.MulPosition(t.V3)), material);
+        }
+
+        int rays = 4000, agree = 0;
+        for (int i = 0; i < rays; i++) {
+            Vector origin = point(random, 8);
+            Vector target = point(random, 2);
+            Ray ray = new Ray(origin, target.Sub(origin).Normalize());
+            double expected = Hit.NoHit.T;
+            for (Triangle t : reference) {
+                expected = Math.min(expected, t.Intersect(ray).T);
+            }
+            Hit hit = shape.Intersect(ray);
+            if (hit.Ok() == expected < Hit.NoHit.T && (!hit.Ok() || Math.abs(hit.T - expected) < 1e-6 * (1 + expected))) {
+                agree++;
+            }
+        }
+        System.out.printf("%d of %d rays agree%n", agree, rays);
+        if (agree != rays) {
+            throw new AssertionError("nested instance missed hits");
+        }
+    }
+
+    static Triangle triangle(Vector v1, Vector v2, Vector v3, Material material) {
+        Vector n = new Vector();
+        Triangle t = Triangle.NewTriangle(v1, v2, v3, n, n, n, n, n, n, material);
+        t.FixNormals();
+        return t;
+    }
+
+    static Vector point(Random random, double size) {
+        return new Vector(random.nextDouble() * 2 - 1, random.nextDouble() * 2 - 1, random.nextDouble() * 2 - 1).MulScalar(size);
+    }
+}